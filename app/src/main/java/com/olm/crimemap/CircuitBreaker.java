@@ -0,0 +1,86 @@
+package com.olm.crimemap;
+
+/**
+ * Circuit breaker for the data.sfgov.org endpoint.
+ *
+ * After FAILURE_THRESHOLD failures in a row the circuit opens, and requests are refused for
+ * the open time so that callers fall back to cached data straight away.  After that a single
+ * trial request is let through; its success closes the circuit, its failure opens it again.
+ * A trial abandoned by its caller is let through again.
+ */
+
+public class CircuitBreaker {
+
+    private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    private static final long DEFAULT_OPEN_MS = 30 * 1000;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int mFailureThreshold;
+    private final long mOpenMs;
+
+    private State mState = State.CLOSED;
+    private int mFailures = 0;
+    private long mOpenedAt;
+
+
+    public CircuitBreaker(){
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MS);
+    }
+
+    public CircuitBreaker(int failure_threshold, long open_ms){
+        mFailureThreshold = failure_threshold;
+        mOpenMs = open_ms;
+    }
+
+
+    /**
+     * @return true if a request may be sent now
+     */
+    public synchronized boolean allowRequest() {
+        switch (mState) {
+            case OPEN:
+                if (System.currentTimeMillis() - mOpenedAt < mOpenMs) {
+                    return false;
+                }
+                // let a single trial request through
+                mState = State.HALF_OPEN;
+                return true;
+
+            case HALF_OPEN:
+                // the trial request is still out
+                return false;
+
+            default:
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        mFailures = 0;
+        mState = State.CLOSED;
+    }
+
+    public synchronized void recordFailure() {
+        mFailures++;
+        if (mState == State.HALF_OPEN || mFailures >= mFailureThreshold) {
+            mState = State.OPEN;
+            mOpenedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The request let through ended without telling anything about the endpoint, such as when
+     * its caller was cancelled.  A trial request may then be let through straight away.
+     */
+    public synchronized void recordAbandoned() {
+        if (mState == State.HALF_OPEN) {
+            mState = State.OPEN;
+            mOpenedAt = System.currentTimeMillis() - mOpenMs;
+        }
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+}
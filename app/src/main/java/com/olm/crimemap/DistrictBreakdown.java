@@ -0,0 +1,213 @@
+package com.olm.crimemap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Per district summary of the incidents in the snapshot: the most reported categories,
+ * the number of incidents in each hour of the day, and the weekly trend.
+ *
+ * All the breakdowns are computed together in one pass over the snapshot, in the background when
+ * the district map loads, so that a click on a district marker only has to look one up.
+ */
+
+public class DistrictBreakdown {
+
+    static final int TOP_CATEGORY_COUNT = 5;
+    private static final int SECONDS_PER_HOUR = 3600;
+    private static final int SECONDS_PER_DAY = 24 * SECONDS_PER_HOUR;
+    private static final int SECONDS_PER_WEEK = 7 * SECONDS_PER_DAY;
+
+
+    /**
+     * Number of incidents reported under one category
+     */
+    public static class CategoryCount {
+        public final String category;
+        public final int count;
+
+        CategoryCount(String category, int count){
+            this.category = category;
+            this.count = count;
+        }
+    }
+
+
+    private final String mDistrict;
+    private int mTotal = 0;
+    private final int[] mHourly = new int[24];
+    private final int[] mWeekly;
+
+    // part of the oldest week inside the window, which starts at an arbitrary time
+    private final int mOldestWeekSeconds;
+
+    // counts indexed by category dictionary id, only needed while computing
+    private int[] mCategoryCounts;
+    private List<CategoryCount> mTopCategories;
+
+
+    private DistrictBreakdown(String district, int dictionary_size, int week_count,
+                              int oldest_week_seconds){
+        mDistrict = district;
+        mCategoryCounts = new int[dictionary_size];
+        mWeekly = new int[week_count];
+        mOldestWeekSeconds = oldest_week_seconds;
+    }
+
+
+    /**
+     * Compute the breakdown of every district for the incidents after the given time.
+     *
+     * @param snapshot IncidentSnapshot
+     * @param since_ms ms since epoc
+     * @param time_zone TimeZone the hours of the day are counted in
+     * @return map of district name to its DistrictBreakdown
+     */
+    public static HashMap<String, DistrictBreakdown> compute(final IncidentSnapshot snapshot,
+                                                             long since_ms,
+                                                             final TimeZone time_zone) {
+
+        final HashMap<String, DistrictBreakdown> breakdowns = new HashMap<>();
+        final int row_count = snapshot.getRowCount();
+        final int since = IncidentSnapshot.toSeconds(since_ms);
+
+        if (row_count == 0) {
+            return breakdowns;
+        }
+
+        // weeks are counted back from the latest incident, so the last bucket is a full week
+        final int latest = snapshot.getTime(row_count - 1);
+        final int week_count = Math.max(1, (latest - since) / SECONDS_PER_WEEK + 1);
+        final int oldest_week_seconds = Math.max(0, Math.min(SECONDS_PER_WEEK,
+                latest - since - (week_count - 1) * SECONDS_PER_WEEK + 1));
+
+        // breakdowns indexed by district dictionary id, to avoid a string lookup per row
+        final DistrictBreakdown[] by_id = new DistrictBreakdown[snapshot.getDictionarySize()];
+
+        snapshot.forEachSince(since_ms, new IncidentSnapshot.RowVisitor() {
+            @Override
+            public void visit(int row) {
+                short district = snapshot.getDistrictId(row);
+
+                DistrictBreakdown breakdown = by_id[district];
+                if (breakdown == null) {
+                    breakdown = new DistrictBreakdown(snapshot.getString(district),
+                            by_id.length, week_count, oldest_week_seconds);
+                    by_id[district] = breakdown;
+                    breakdowns.put(breakdown.mDistrict, breakdown);
+                }
+
+                int time = snapshot.getTime(row);
+                int local_time = time + time_zone.getOffset(time * 1000L) / 1000;
+
+                breakdown.mTotal++;
+                breakdown.mCategoryCounts[snapshot.getCategoryId(row)]++;
+                breakdown.mHourly[(local_time % SECONDS_PER_DAY + SECONDS_PER_DAY)
+                        % SECONDS_PER_DAY / SECONDS_PER_HOUR]++;
+                breakdown.mWeekly[week_count - 1 - (latest - time) / SECONDS_PER_WEEK]++;
+            }
+        });
+
+        for (DistrictBreakdown breakdown : breakdowns.values()) {
+            breakdown.rankCategories(snapshot);
+        }
+
+        return breakdowns;
+    }
+
+
+    private void rankCategories(IncidentSnapshot snapshot) {
+        List<CategoryCount> categories = new ArrayList<>();
+        for (int id = 0; id < mCategoryCounts.length; id++) {
+            if (mCategoryCounts[id] > 0) {
+                categories.add(new CategoryCount(snapshot.getString(id), mCategoryCounts[id]));
+            }
+        }
+
+        Collections.sort(categories, new Comparator<CategoryCount>() {
+            @Override
+            public int compare(CategoryCount a, CategoryCount b) {
+                return b.count < a.count ? -1 : (a.count == b.count ? 0 : 1);
+            }
+        });
+
+        mTopCategories = categories.subList(0, Math.min(TOP_CATEGORY_COUNT, categories.size()));
+        mCategoryCounts = null;
+    }
+
+
+    public String getDistrict() {
+        return mDistrict;
+    }
+
+    public int getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * @return the most reported categories, most reported first
+     */
+    public List<CategoryCount> getTopCategories() {
+        return mTopCategories;
+    }
+
+    /**
+     * @return incident count for each hour of the day, starting at midnight
+     */
+    public int[] getHourly() {
+        return mHourly;
+    }
+
+    /**
+     * @return the hour of the day with the most incidents
+     */
+    public int getBusiestHour() {
+        int busiest = 0;
+        for (int hour = 1; hour < mHourly.length; hour++) {
+            if (mHourly[hour] > mHourly[busiest]) {
+                busiest = hour;
+            }
+        }
+        return busiest;
+    }
+
+    /**
+     * @return incident count for each week of the window, oldest first.  The oldest week is
+     * only partly inside the window, unless the window is a whole number of weeks.
+     */
+    public int[] getWeekly() {
+        return mWeekly;
+    }
+
+    /**
+     * @return percent change of the latest week against the weekly average of the earlier weeks,
+     * or 0 if there are no earlier weeks.  The partial oldest week counts for the part of a week
+     * it covers, or not at all if that is under a day.
+     */
+    public int getTrendPercent() {
+        if (mWeekly.length < 2) {
+            return 0;
+        }
+
+        int earlier = 0;
+        double weeks = 0;
+        for (int week = 1; week < mWeekly.length - 1; week++) {
+            earlier += mWeekly[week];
+            weeks++;
+        }
+        if (mOldestWeekSeconds >= SECONDS_PER_DAY) {
+            earlier += mWeekly[0];
+            weeks += mOldestWeekSeconds / (double) SECONDS_PER_WEEK;
+        }
+
+        double average = weeks == 0 ? 0 : earlier / weeks;
+        if (average == 0) {
+            return 0;
+        }
+        return (int) Math.round((mWeekly[mWeekly.length - 1] - average) * 100 / average);
+    }
+}
@@ -0,0 +1,70 @@
+package com.olm.crimemap;
+
+import android.view.Choreographer;
+
+/**
+ * Measures the frames drawn while the UI operations of the map run, to find which of them make
+ * the app drop frames.
+ *
+ * Operations are begun and ended on the UI thread.  While any is running a Choreographer frame
+ * callback is posted for every frame, and the frame times are attributed to the operations by
+ * FrameStats.  No callback is posted while nothing is running.
+ */
+
+public class FrameMetricsMonitor implements Choreographer.FrameCallback {
+
+    // the search box opening or closing
+    public static final String OP_ANIMATION = "animation";
+
+    // a layer, or new markers, put on the map
+    public static final String OP_LAYER_ADD = "layer add";
+
+    // results parsed in the background being styled and handed to the map
+    public static final String OP_PARSE_HAND_OFF = "parse hand-off";
+
+    private final FrameStats mStats;
+
+
+    /**
+     * @param refresh_rate frames per second of the display
+     */
+    public FrameMetricsMonitor(float refresh_rate){
+        mStats = new FrameStats((long) (1000000000L / refresh_rate));
+    }
+
+
+    /**
+     * Note the start of an operation, on the UI thread
+     */
+    public void begin(String operation) {
+        if (mStats.begin(operation, System.nanoTime())) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Note the end of an operation, on the UI thread
+     */
+    public void end(String operation) {
+        mStats.end(operation);
+    }
+
+    @Override
+    public void doFrame(long frame_time_nanos) {
+        if (mStats.onFrame(frame_time_nanos)) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+
+    public FrameStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * @return p50/p95/p99 frame times and dropped frames of each operation
+     */
+    public String getReport() {
+        return mStats.getReport();
+    }
+}
@@ -0,0 +1,175 @@
+package com.olm.crimemap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Frame times attributed to the UI operations running while each frame was drawn, such as the
+ * search box animation or adding a layer to the map.
+ *
+ * Operations are begun and ended around the work on the UI thread, and the time of each frame is
+ * given as it starts.  A frame is attributed to every operation that was running at any point
+ * since the previous frame, so that an operation begun and ended between two frames is still
+ * charged with the frame it delayed.  Frames are only needed while an operation is running, or
+ * has just ended.
+ *
+ * The frame times of each operation are kept in a LatencyTracker, in microseconds, along with
+ * the number of frames dropped, that is the refresh intervals missed.
+ */
+
+public class FrameStats {
+
+    private static final int FRAMES_KEPT = 600;
+
+    /**
+     * Frame figures of one operation
+     */
+    public static class Operation {
+        final LatencyTracker frame_times_us = new LatencyTracker(FRAMES_KEPT);
+        long frames = 0;
+        long dropped_frames = 0;
+
+        public long getFrames() {
+            return frames;
+        }
+
+        public long getDroppedFrames() {
+            return dropped_frames;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return frame time in ms of the recent frames, or -1 if there are none
+         */
+        public double getPercentileMs(double percentile) {
+            long us = frame_times_us.getPercentile(percentile);
+            return us < 0 ? -1 : us / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d frames, %d dropped, p50=%.1fms p95=%.1fms " +
+                    "p99=%.1fms", frames, dropped_frames, getPercentileMs(50),
+                    getPercentileMs(95), getPercentileMs(99));
+        }
+    }
+
+
+    private final long mFrameIntervalNs;
+
+    // operations running, with the number of times each has been begun and not ended
+    private final HashMap<String, Integer> mRunning = new HashMap<>();
+
+    // operations running at any point since the last frame
+    private final HashSet<String> mSinceLastFrame = new HashSet<>();
+
+    private long mLastFrameNs;
+
+    private final LinkedHashMap<String, Operation> mOperations = new LinkedHashMap<>();
+
+
+    /**
+     * @param frame_interval_ns time between two frames at the display refresh rate
+     */
+    public FrameStats(long frame_interval_ns){
+        mFrameIntervalNs = frame_interval_ns;
+    }
+
+
+    /**
+     * Note the start of an operation
+     * @param operation name of the operation
+     * @param now_ns System.nanoTime() at the start
+     * @return true if frames were not needed before, and should now be given to onFrame()
+     */
+    public synchronized boolean begin(String operation, long now_ns) {
+        boolean idle = !isWatching();
+
+        // nothing was watched before, so the first frame is measured from now
+        if (idle) {
+            mLastFrameNs = now_ns;
+        }
+
+        Integer count = mRunning.get(operation);
+        mRunning.put(operation, count == null ? 1 : count + 1);
+        mSinceLastFrame.add(operation);
+
+        return idle;
+    }
+
+    /**
+     * Note the end of an operation, which is still charged with the next frame
+     */
+    public synchronized void end(String operation) {
+        Integer count = mRunning.get(operation);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            mRunning.put(operation, count - 1);
+        } else {
+            mRunning.remove(operation);
+        }
+    }
+
+    /**
+     * Attribute the frame ending at the given time to the operations run since the last frame
+     * @param frame_time_ns start of the new frame, in the System.nanoTime() time base
+     * @return true if the next frame is needed as well
+     */
+    public synchronized boolean onFrame(long frame_time_ns) {
+        // a frame takes at least one refresh interval, even when it follows a begin() closely
+        long frame_ns = Math.max(frame_time_ns - mLastFrameNs, mFrameIntervalNs);
+        long dropped = (frame_ns + mFrameIntervalNs / 2) / mFrameIntervalNs - 1;
+        mLastFrameNs = frame_time_ns;
+
+        for (String name : mSinceLastFrame) {
+            Operation operation = mOperations.get(name);
+            if (operation == null) {
+                operation = new Operation();
+                mOperations.put(name, operation);
+            }
+            operation.frame_times_us.record(frame_ns / 1000);
+            operation.frames++;
+            operation.dropped_frames += dropped;
+        }
+
+        mSinceLastFrame.clear();
+        mSinceLastFrame.addAll(mRunning.keySet());
+
+        return isWatching();
+    }
+
+    /**
+     * @return true while frames are being attributed to an operation
+     */
+    public synchronized boolean isWatching() {
+        return !mSinceLastFrame.isEmpty();
+    }
+
+
+    /**
+     * @return figures of the operation, or null if no frame has been attributed to it
+     */
+    public synchronized Operation getOperation(String operation) {
+        return mOperations.get(operation);
+    }
+
+    /**
+     * @return one line per operation, with its frame count, dropped frames and frame time
+     * percentiles
+     */
+    public synchronized String getReport() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Operation> entry : mOperations.entrySet()) {
+            if (report.length() > 0) {
+                report.append("\n");
+            }
+            report.append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return report.toString();
+    }
+}
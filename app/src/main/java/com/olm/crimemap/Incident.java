@@ -0,0 +1,29 @@
+package com.olm.crimemap;
+
+/**
+ * Single SFPD incident record, as taken from the data.sfgov.org incident feed.
+ * Only the columns needed for the on device snapshot are kept.
+ */
+
+public class Incident {
+
+    public final long id;           // the pdid column, unique per record
+    public final float lat;
+    public final float lon;
+    public final int time;          // seconds since epoc
+    public final String category;
+    public final String district;
+    public final String descript;
+
+
+    public Incident(long id, float lat, float lon, int time,
+                    String category, String district, String descript){
+        this.id = id;
+        this.lat = lat;
+        this.lon = lon;
+        this.time = time;
+        this.category = category == null ? "" : category;
+        this.district = district == null ? "" : district;
+        this.descript = descript == null ? "" : descript;
+    }
+}
@@ -0,0 +1,140 @@
+package com.olm.crimemap;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streaming parser for the plain JSON form of the SFPD incident feed, which is a single array of
+ * incident objects.  Records are read one at a time, so the whole response never has to be held
+ * as a string the way the geoJSON results are.
+ *
+ * Records without a usable location or date are skipped.
+ */
+
+public class IncidentFeedParser {
+
+    private static final String TAG = "IncidentFeedParser";
+
+    private final SimpleDateFormat mDateFormat;
+
+
+    /**
+     * @param date_format the format of the date column, SFPD_Incidents_query_date_format
+     */
+    public IncidentFeedParser(String date_format){
+        mDateFormat = new SimpleDateFormat(date_format, Locale.US);
+    }
+
+
+    public List<Incident> parse(InputStream stream) throws IOException {
+
+        List<Incident> incidents = new ArrayList<>();
+
+        JsonReader reader = new JsonReader(new InputStreamReader(stream, "UTF-8"));
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Incident incident = readIncident(reader);
+                if (incident != null) {
+                    incidents.add(incident);
+                }
+            }
+            reader.endArray();
+        } finally {
+            reader.close();
+        }
+
+        return incidents;
+    }
+
+
+    private Incident readIncident(JsonReader reader) throws IOException {
+
+        String pdid = null, category = null, district = null, descript = null;
+        String date = null, time = null, x = null, y = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (reader.peek() != JsonToken.STRING) {
+                // nested location objects and nulls are not needed
+                reader.skipValue();
+                continue;
+            }
+
+            switch (name) {
+                case "pdid":
+                    pdid = reader.nextString();
+                    break;
+                case "category":
+                    category = reader.nextString();
+                    break;
+                case "pddistrict":
+                    district = reader.nextString();
+                    break;
+                case "descript":
+                    descript = reader.nextString();
+                    break;
+                case "date":
+                    date = reader.nextString();
+                    break;
+                case "time":
+                    time = reader.nextString();
+                    break;
+                case "x":
+                    x = reader.nextString();
+                    break;
+                case "y":
+                    y = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (pdid == null || date == null || x == null || y == null) {
+            return null;
+        }
+
+        try {
+            return new Incident(Long.parseLong(pdid),
+                    Float.parseFloat(y),
+                    Float.parseFloat(x),
+                    toSeconds(date, time),
+                    category, district, descript);
+
+        } catch (NumberFormatException | ParseException e) {
+            Log.w(TAG, "Skipping unreadable incident " + pdid);
+            return null;
+        }
+    }
+
+
+    /**
+     * The feed splits each timestamp into a date column at midnight and an HH:mm time column
+     */
+    private int toSeconds(String date, String time) throws ParseException {
+
+        Date day = mDateFormat.parse(date);
+        int seconds = (int) (day.getTime() / 1000L);
+
+        if (time != null && time.length() == 5 && time.charAt(2) == ':') {
+            seconds += Integer.parseInt(time.substring(0, 2)) * 3600
+                    + Integer.parseInt(time.substring(3, 5)) * 60;
+        }
+        return seconds;
+    }
+}
@@ -0,0 +1,109 @@
+package com.olm.crimemap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Builds geoJSON objects from the incident snapshot, in the same shape as the data.sfgov.org
+ * geoJSON responses, so that local results can be drawn by the existing map layer code.
+ */
+
+public class IncidentGeoJson {
+
+    /**
+     * Feature collection matching the SFPD_Incidents_request response, a feature per district
+     * with the properties count, avg_x and avg_y, ordered by count descending.
+     */
+    public static JSONObject districtCollection(List<IncidentSnapshot.DistrictSummary> summaries)
+            throws JSONException {
+
+        JSONArray features = new JSONArray();
+
+        for (IncidentSnapshot.DistrictSummary summary : summaries) {
+            JSONObject properties = new JSONObject();
+            properties.put("pddistrict", summary.district);
+            properties.put("count", Integer.toString(summary.count));
+            properties.put("avg_x", Double.toString(summary.avg_lon));
+            properties.put("avg_y", Double.toString(summary.avg_lat));
+
+            JSONObject feature = new JSONObject();
+            feature.put("type", "Feature");
+            feature.put("geometry", JSONObject.NULL);
+            feature.put("properties", properties);
+            features.put(feature);
+        }
+
+        return collection(features);
+    }
+
+
+    /**
+     * Point feature for a single snapshot row, with the properties used by the search markers
+     */
+    public static JSONObject incidentFeature(IncidentSnapshot snapshot, int row)
+            throws JSONException {
+
+        JSONArray coordinates = new JSONArray();
+        coordinates.put((double) snapshot.getLon(row));
+        coordinates.put((double) snapshot.getLat(row));
+
+        JSONObject geometry = new JSONObject();
+        geometry.put("type", "Point");
+        geometry.put("coordinates", coordinates);
+
+        JSONObject properties = new JSONObject();
+        properties.put("pdid", Long.toString(snapshot.getId(row)));
+        properties.put("category", snapshot.getCategory(row));
+        properties.put("pddistrict", snapshot.getDistrict(row));
+        properties.put("descript", snapshot.getDescript(row));
+
+        JSONObject feature = new JSONObject();
+        feature.put("type", "Feature");
+        feature.put("geometry", geometry);
+        feature.put("properties", properties);
+        return feature;
+    }
+
+
+    /**
+     * RowVisitor collecting a point feature for each visited row, for the snapshot and radius
+     * queries.  Any JSONException is held until the collection is requested.
+     */
+    public static class FeatureCollector implements IncidentSnapshot.RowVisitor {
+
+        private final IncidentSnapshot mSnapshot;
+        private final JSONArray mFeatures = new JSONArray();
+        private JSONException mError;
+
+        public FeatureCollector(IncidentSnapshot snapshot){
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        public void visit(int row) {
+            try {
+                mFeatures.put(incidentFeature(mSnapshot, row));
+            } catch (JSONException e) {
+                mError = e;
+            }
+        }
+
+        public JSONObject getCollection() throws JSONException {
+            if (mError != null) {
+                throw mError;
+            }
+            return collection(mFeatures);
+        }
+    }
+
+
+    public static JSONObject collection(JSONArray features) throws JSONException {
+        JSONObject collection = new JSONObject();
+        collection.put("type", "FeatureCollection");
+        collection.put("features", features);
+        return collection;
+    }
+}
@@ -0,0 +1,169 @@
+package com.olm.crimemap;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index over the rows of an IncidentSnapshot, answering "within N meters of this point"
+ * queries on the device.
+ *
+ * The map is divided into fixed grid cells of CELL_DEGREES on a side, and the snapshot rows are
+ * kept sorted by cell.  A radius query only looks at the cells overlapping the bounding box of the
+ * circle, and the exact haversine distance is only computed for the rows in those cells.
+ */
+
+public class IncidentGridIndex {
+
+    // about 280m north-south and 220m east-west in San Francisco
+    static final double CELL_DEGREES = 0.0025;
+
+    private static final long GRID_COLUMNS = (long) Math.ceil(360 / CELL_DEGREES);
+    private static final double EARTH_RADIUS_METERS = 6371000;
+    private static final double METERS_PER_DEGREE = 111320;
+
+    // the row is packed below the cell key in 24 bits, the key needing at most 34 bits
+    private static final int ROW_BITS = 24;
+    static final int MAX_ROWS = 1 << ROW_BITS;
+
+    private final IncidentSnapshot mSnapshot;
+
+    // cell key of each entry, ascending, and the snapshot row at the same position
+    private final long[] mKeys;
+    private final int[] mRows;
+
+
+    private IncidentGridIndex(IncidentSnapshot snapshot, long[] keys, int[] rows){
+        mSnapshot = snapshot;
+        mKeys = keys;
+        mRows = rows;
+    }
+
+
+    /**
+     * Bucket every row of the snapshot into its grid cell.
+     *
+     * @param snapshot IncidentSnapshot, of at most MAX_ROWS rows
+     * @return IncidentGridIndex
+     * @throws IllegalArgumentException if the snapshot has too many rows to be packed
+     */
+    public static IncidentGridIndex build(IncidentSnapshot snapshot) {
+
+        int row_count = snapshot.getRowCount();
+        checkRowCount(row_count);
+
+        // pack the cell key above the row, so a primitive sort orders rows by cell
+        long[] packed = new long[row_count];
+        for (int row = 0; row < row_count; row++) {
+            packed[row] = (cellKey(snapshot.getLat(row), snapshot.getLon(row)) << ROW_BITS) | row;
+        }
+        Arrays.sort(packed);
+
+        long[] keys = new long[row_count];
+        int[] rows = new int[row_count];
+        for (int i = 0; i < row_count; i++) {
+            keys[i] = packed[i] >>> ROW_BITS;
+            rows[i] = (int) (packed[i] & (MAX_ROWS - 1));
+        }
+
+        return new IncidentGridIndex(snapshot, keys, rows);
+    }
+
+    static void checkRowCount(int row_count) {
+        if (row_count > MAX_ROWS) {
+            throw new IllegalArgumentException("Snapshot of " + row_count +
+                    " rows is too large to index, at most " + MAX_ROWS);
+        }
+    }
+
+
+    public IncidentSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+
+    /**
+     * Visit every row after the given time that is within the radius of the point.
+     *
+     * @param lat latitude of the center
+     * @param lon longitude of the center
+     * @param radius_meters radius of the query
+     * @param since_ms ms since epoc
+     * @param visitor RowVisitor handed each matching row
+     * @return number of matching rows
+     */
+    public int within(double lat, double lon, double radius_meters, long since_ms,
+                      IncidentSnapshot.RowVisitor visitor) {
+
+        int since = IncidentSnapshot.toSeconds(since_ms);
+
+        // bounding box of the circle, in degrees
+        double lat_span = radius_meters / METERS_PER_DEGREE;
+        double lon_span = radius_meters / (METERS_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+
+        long first_row = cellIndex(lat - lat_span, 90);
+        long last_row = cellIndex(lat + lat_span, 90);
+        long first_column = cellIndex(lon - lon_span, 180);
+        long last_column = cellIndex(lon + lon_span, 180);
+
+        int matches = 0;
+
+        // the cells of one grid row have consecutive keys, so each is a single range of entries
+        for (long cell_row = first_row; cell_row <= last_row; cell_row++) {
+            long last_key = cell_row * GRID_COLUMNS + last_column;
+
+            for (int i = lowerBound(cell_row * GRID_COLUMNS + first_column);
+                 i < mKeys.length && mKeys[i] <= last_key; i++) {
+
+                int row = mRows[i];
+                if (mSnapshot.getTime(row) >= since &&
+                        distanceMeters(lat, lon, mSnapshot.getLat(row), mSnapshot.getLon(row))
+                                <= radius_meters) {
+                    visitor.visit(row);
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+
+    /**
+     * Great circle distance by the haversine formula
+     */
+    static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double d_lat = Math.toRadians(lat2 - lat1);
+        double d_lon = Math.toRadians(lon2 - lon1);
+
+        double a = Math.sin(d_lat / 2) * Math.sin(d_lat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+                        Math.sin(d_lon / 2) * Math.sin(d_lon / 2);
+
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+
+    private static long cellKey(double lat, double lon) {
+        return cellIndex(lat, 90) * GRID_COLUMNS + cellIndex(lon, 180);
+    }
+
+    private static long cellIndex(double degrees, double offset) {
+        return (long) Math.floor((degrees + offset) / CELL_DEGREES);
+    }
+
+    /**
+     * @return the first entry with a key at or above the given key
+     */
+    private int lowerBound(long key) {
+        int low = 0;
+        int high = mKeys.length;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mKeys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,140 @@
+package com.olm.crimemap;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The data.sfgov.org queries of the app, on the SF police incident dataset.
+ *
+ * Every time window is rounded to whole days, the finest unit of the date column.
+ */
+
+public class IncidentQueries {
+
+    static final String DATASET = "https://data.sfgov.org/resource/cuks-n6tp";
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final double METERS_PER_DEGREE = 111320;
+
+    // shapes of the queries the local incident snapshot can answer, given that it covers their
+    // window: the district counts, the nearby incidents and every form of search.  The snapshot
+    // pages are what the snapshot is made of, so they are always fetched.
+    static final Set<String> SNAPSHOT_SHAPES = snapshotShapes();
+
+
+    /**
+     * Query for the number of incidents per police district since the given time, with the
+     * average lat. and lon. of the incidents, in descending order of the count
+     *
+     * @param since ms since epoc
+     */
+    public static SoqlQuery districtCounts(long since) {
+        return districtCounts(DATASET, since);
+    }
+
+    /**
+     * @param dataset URL of the dataset resource, such as that of a local stand-in
+     */
+    static SoqlQuery districtCounts(String dataset, long since) {
+        return new SoqlQuery.Builder(dataset, SoqlQuery.Format.GEOJSON)
+                .select("pddistrict")
+                .selectCount()
+                .selectAvg("x")
+                .selectAvg("y")
+                .window("date", since, Long.MAX_VALUE, DAY_MS)
+                .groupBy("pddistrict")
+                .orderBy("count", true)
+                .build();
+    }
+
+    /**
+     * Query for a page of incidents since the given time, in plain JSON, with only the columns
+     * kept in the local incident snapshot, in a stable order
+     *
+     * @param since ms since epoc
+     * @param limit number of incidents per page
+     * @param offset number of incidents before the page
+     */
+    public static SoqlQuery snapshotPage(long since, int limit, int offset) {
+        return new SoqlQuery.Builder(DATASET, SoqlQuery.Format.JSON)
+                .select("pdid")
+                .select("category")
+                .select("descript")
+                .select("pddistrict")
+                .select("date")
+                .select("time")
+                .select("x")
+                .select("y")
+                .window("date", since, Long.MAX_VALUE, DAY_MS)
+                .orderBy("date", false)
+                .orderBy("pdid", false)
+                .limit(limit)
+                .offset(offset)
+                .build();
+    }
+
+    /**
+     * Query for the incidents since the given time in the box around a circle.  The incidents in
+     * the corners of the box, outside the circle, are left for the caller to drop.
+     *
+     * @param since ms since epoc
+     * @param lat latitude of the center
+     * @param lon longitude of the center
+     * @param radius_meters radius of the circle
+     */
+    public static SoqlQuery nearby(long since, double lat, double lon, double radius_meters) {
+        double lat_degrees = radius_meters / METERS_PER_DEGREE;
+        double lon_degrees = lat_degrees / Math.cos(Math.toRadians(lat));
+
+        return new SoqlQuery.Builder(DATASET, SoqlQuery.Format.GEOJSON)
+                .window("date", since, Long.MAX_VALUE, DAY_MS)
+                .whereBetween("y", lat - lat_degrees, lat + lat_degrees)
+                .whereBetween("x", lon - lon_degrees, lon + lon_degrees)
+                .build();
+    }
+
+    /**
+     * Query for the incidents passing the filters of a search request and matching one term
+     *
+     * @param request SearchRequest holding the filters
+     * @param term search term, or an empty string for every incident
+     */
+    public static SoqlQuery search(SearchRequest request, String term) {
+        return search(DATASET, request, term);
+    }
+
+    /**
+     * @param dataset URL of the dataset resource, such as that of a local stand-in
+     */
+    static SoqlQuery search(String dataset, SearchRequest request, String term) {
+        SoqlQuery.Builder builder = new SoqlQuery.Builder(dataset, SoqlQuery.Format.GEOJSON)
+                .window("date", request.getSince(), request.getUntil(), DAY_MS);
+
+        if (request.getCategory() != null) {
+            builder.whereEquals("category", request.getCategory());
+        }
+        if (request.getDistrict() != null) {
+            builder.whereEquals("pddistrict", request.getDistrict());
+        }
+        if (!term.isEmpty()) {
+            builder.search(term);
+        }
+        return builder.build();
+    }
+
+    private static Set<String> snapshotShapes() {
+        Set<String> shapes = new HashSet<>();
+        shapes.add(districtCounts(0).getShape());
+        shapes.add(nearby(0, 0, 0, 1).getShape());
+
+        // each filter and the term may or may not be given, and so may the end of the window
+        for (int form = 0; form < 16; form++) {
+            SearchRequest request = new SearchRequest(Collections.<String>emptyList(),
+                    (form & 1) != 0 ? "?" : null, (form & 2) != 0 ? "?" : null,
+                    0, (form & 4) != 0 ? DAY_MS : Long.MAX_VALUE);
+            shapes.add(search(request, (form & 8) != 0 ? "?" : "").getShape());
+        }
+        return Collections.unmodifiableSet(shapes);
+    }
+}
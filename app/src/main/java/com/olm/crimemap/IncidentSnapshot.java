@@ -0,0 +1,370 @@
+package com.olm.crimemap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Read only, memory-mapped view of the incident snapshot file written by IncidentSnapshotWriter.
+ *
+ * Opening the snapshot only maps the file and reads the fixed size header, so it takes the same
+ * time no matter how many incidents are stored.  Rows are never turned into objects; each column
+ * is read straight out of the mapped buffer by row index.
+ *
+ * File layout, all little endian:
+ *
+ *   header      int magic, int version, int row count, int dictionary size,
+ *               long window start (ms), long creation time (ms)
+ *   id          long[rows]   pdid of each incident
+ *   lat, lon    float[rows]
+ *   time        int[rows]    seconds since epoc, ascending
+ *   category    short[rows]  dictionary ids
+ *   district    short[rows]  dictionary ids
+ *   descript    short[rows]  dictionary ids
+ *   dictionary  int[dictionary size] offsets, then (short length, UTF-8 bytes) per string
+ *
+ * The district aggregation, time filtering and search term matching that used to be sent to
+ * data.sfgov.org are answered here.  They allocate in proportion to the dictionary size, never to
+ * the number of rows.
+ */
+
+public class IncidentSnapshot {
+
+    static final int MAGIC = 0x434d4150;  // "CMAP"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MappedByteBuffer mBuffer;
+    private final Layout mLayout;
+    private final long mWindowStart;
+    private final long mCreatedAt;
+
+    // strings decoded from the dictionary on first use
+    private final String[] mStrings;
+
+
+    /**
+     * Callback handed each matching row index, so that callers can read the columns they need
+     * without a result list being built.
+     */
+    public interface RowVisitor {
+        void visit(int row);
+    }
+
+
+    /**
+     * Incident count and average location for one police district
+     */
+    public static class DistrictSummary {
+        public final String district;
+        public final int count;
+        public final double avg_lat;
+        public final double avg_lon;
+
+        DistrictSummary(String district, int count, double avg_lat, double avg_lon){
+            this.district = district;
+            this.count = count;
+            this.avg_lat = avg_lat;
+            this.avg_lon = avg_lon;
+        }
+    }
+
+
+    /**
+     * Byte offsets of each column for a given row count, shared with the writer
+     */
+    static class Layout {
+        final int id_offset;
+        final int lat_offset;
+        final int lon_offset;
+        final int time_offset;
+        final int category_offset;
+        final int district_offset;
+        final int descript_offset;
+        final int dictionary_offset;
+        final int dictionary_data_offset;
+
+        Layout(int row_count, int dictionary_size){
+            id_offset = HEADER_SIZE;
+            lat_offset = id_offset + 8 * row_count;
+            lon_offset = lat_offset + 4 * row_count;
+            time_offset = lon_offset + 4 * row_count;
+            category_offset = time_offset + 4 * row_count;
+            district_offset = category_offset + 2 * row_count;
+            descript_offset = district_offset + 2 * row_count;
+            dictionary_offset = align4(descript_offset + 2 * row_count);
+            dictionary_data_offset = dictionary_offset + 4 * dictionary_size;
+        }
+
+        private static int align4(int offset){
+            return (offset + 3) & ~3;
+        }
+    }
+
+
+    private IncidentSnapshot(MappedByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (mBuffer.capacity() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an incident snapshot");
+        }
+        if (mBuffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported incident snapshot version " + mBuffer.getInt(4));
+        }
+
+        int row_count = mBuffer.getInt(8);
+        int dictionary_size = mBuffer.getInt(12);
+        mWindowStart = mBuffer.getLong(16);
+        mCreatedAt = mBuffer.getLong(24);
+
+        mLayout = new Layout(row_count, dictionary_size);
+        if (mBuffer.capacity() < mLayout.dictionary_data_offset) {
+            throw new IOException("Incident snapshot is truncated");
+        }
+
+        mStrings = new String[dictionary_size];
+    }
+
+
+    /**
+     * Map the snapshot file into memory.
+     *
+     * @param file snapshot written by IncidentSnapshotWriter
+     * @return IncidentSnapshot
+     * @throws IOException if the file is missing or not a valid snapshot
+     */
+    public static IncidentSnapshot open(File file) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = raf.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new IncidentSnapshot(buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    public int getRowCount() {
+        return mBuffer.getInt(8);
+    }
+
+    public int getDictionarySize() {
+        return mStrings.length;
+    }
+
+    /**
+     * @return ms since epoc, the start of the time window the snapshot was synced for
+     */
+    public long getWindowStart() {
+        return mWindowStart;
+    }
+
+    /**
+     * @return ms since epoc, when the snapshot was written
+     */
+    public long getCreatedAt() {
+        return mCreatedAt;
+    }
+
+    /**
+     * @return true if every incident after the given time is held in this snapshot
+     */
+    public boolean covers(long since_ms) {
+        return since_ms >= mWindowStart;
+    }
+
+
+    public long getId(int row) {
+        return mBuffer.getLong(mLayout.id_offset + 8 * row);
+    }
+
+    public float getLat(int row) {
+        return mBuffer.getFloat(mLayout.lat_offset + 4 * row);
+    }
+
+    public float getLon(int row) {
+        return mBuffer.getFloat(mLayout.lon_offset + 4 * row);
+    }
+
+    public int getTime(int row) {
+        return mBuffer.getInt(mLayout.time_offset + 4 * row);
+    }
+
+    public short getCategoryId(int row) {
+        return mBuffer.getShort(mLayout.category_offset + 2 * row);
+    }
+
+    public short getDistrictId(int row) {
+        return mBuffer.getShort(mLayout.district_offset + 2 * row);
+    }
+
+    public short getDescriptId(int row) {
+        return mBuffer.getShort(mLayout.descript_offset + 2 * row);
+    }
+
+    public String getCategory(int row) {
+        return getString(getCategoryId(row));
+    }
+
+    public String getDistrict(int row) {
+        return getString(getDistrictId(row));
+    }
+
+    public String getDescript(int row) {
+        return getString(getDescriptId(row));
+    }
+
+
+    /**
+     * Look up a string in the dictionary, decoding it on first use
+     */
+    public String getString(int id) {
+        String s = mStrings[id];
+        if (s == null) {
+            int position = mBuffer.getInt(mLayout.dictionary_offset + 4 * id);
+            int length = mBuffer.getShort(position);
+
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = mBuffer.get(position + 2 + i);
+            }
+
+            s = new String(bytes, UTF_8);
+            mStrings[id] = s;
+        }
+        return s;
+    }
+
+
+    /**
+     * Binary search of the time column, which is sorted ascending.
+     *
+     * @param seconds seconds since epoc
+     * @return the first row at or after the given time, or the row count if there is none
+     */
+    public int firstRowAtOrAfter(int seconds) {
+        int low = 0;
+        int high = getRowCount();
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTime(mid) < seconds) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+     * Visit every row after the given time
+     */
+    public void forEachSince(long since_ms, RowVisitor visitor) {
+        int row_count = getRowCount();
+        for (int row = firstRowAtOrAfter(toSeconds(since_ms)); row < row_count; row++) {
+            visitor.visit(row);
+        }
+    }
+
+
+    /**
+     * Local version of the data.sfgov.org $q search: visit every row after the given time where
+     * the term is included in the category, district or description.
+     *
+     * @param term upper case search term
+     * @param since_ms ms since epoc
+     * @param visitor RowVisitor handed each matching row
+     */
+    public void search(String term, long since_ms, RowVisitor visitor) {
+
+        // matching is done once per dictionary string rather than once per row
+        boolean[] matches = matchingIds(term);
+
+        int row_count = getRowCount();
+        for (int row = firstRowAtOrAfter(toSeconds(since_ms)); row < row_count; row++) {
+            if (matches[getDescriptId(row)] ||
+                    matches[getCategoryId(row)] ||
+                    matches[getDistrictId(row)]) {
+                visitor.visit(row);
+            }
+        }
+    }
+
+
+    /**
+     * @return flags, indexed by dictionary id, for the strings that include the term
+     */
+    public boolean[] matchingIds(String term) {
+        boolean[] matches = new boolean[mStrings.length];
+        if (term.isEmpty()) {
+            return matches;
+        }
+
+        for (int id = 0; id < matches.length; id++) {
+            matches[id] = getString(id).contains(term);
+        }
+        return matches;
+    }
+
+
+    /**
+     * Local version of the district query: count of incidents and average location per district,
+     * for incidents after the given time, ordered by count descending.
+     *
+     * @param since_ms ms since epoc
+     * @return List of DistrictSummary
+     */
+    public List<DistrictSummary> districtSummaries(long since_ms) {
+
+        // accumulate by dictionary id, as there are far fewer strings than rows
+        int[] counts = new int[mStrings.length];
+        double[] lat_sums = new double[mStrings.length];
+        double[] lon_sums = new double[mStrings.length];
+
+        int row_count = getRowCount();
+        for (int row = firstRowAtOrAfter(toSeconds(since_ms)); row < row_count; row++) {
+            short district = getDistrictId(row);
+            counts[district]++;
+            lat_sums[district] += getLat(row);
+            lon_sums[district] += getLon(row);
+        }
+
+        List<DistrictSummary> summaries = new ArrayList<>();
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] > 0) {
+                summaries.add(new DistrictSummary(getString(id), counts[id],
+                        lat_sums[id] / counts[id], lon_sums[id] / counts[id]));
+            }
+        }
+
+        Collections.sort(summaries, new Comparator<DistrictSummary>() {
+            @Override
+            public int compare(DistrictSummary a, DistrictSummary b) {
+                return b.count < a.count ? -1 : (a.count == b.count ? 0 : 1);
+            }
+        });
+
+        return summaries;
+    }
+
+
+    static int toSeconds(long ms) {
+        return (int) (ms / 1000L);
+    }
+}
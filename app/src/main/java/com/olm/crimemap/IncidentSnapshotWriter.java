@@ -0,0 +1,157 @@
+package com.olm.crimemap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes a list of incidents into the fixed layout snapshot file read by IncidentSnapshot.
+ *
+ * The rows are sorted by time before writing, so that time windows can be found in the snapshot
+ * by a binary search. All strings are replaced by short ids into a single string dictionary.
+ *
+ * The file is written to a temporary file first and renamed into place, so a reader never
+ * maps a half written snapshot.
+ */
+
+public class IncidentSnapshotWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+
+    /**
+     * Write the incidents to the given file.
+     *
+     * @param file destination of the snapshot
+     * @param incidents rows to store, in any order
+     * @param window_start ms since epoc, the start of the time window covered by the rows
+     */
+    public static void write(File file, List<Incident> incidents, long window_start)
+            throws IOException {
+
+        // sort by time, so the reader can binary search a time window
+        List<Incident> rows = new ArrayList<>(incidents);
+        Collections.sort(rows, new Comparator<Incident>() {
+            @Override
+            public int compare(Incident a, Incident b) {
+                return a.time < b.time ? -1 : (a.time == b.time ? 0 : 1);
+            }
+        });
+
+        // build the string dictionary, id 0 is always the empty string
+        HashMap<String, Integer> dictionary_ids = new HashMap<>();
+        List<byte[]> dictionary = new ArrayList<>();
+        dictionaryId("", dictionary_ids, dictionary);
+
+        int row_count = rows.size();
+        short[] category = new short[row_count];
+        short[] district = new short[row_count];
+        short[] descript = new short[row_count];
+
+        for (int i = 0; i < row_count; i++) {
+            Incident incident = rows.get(i);
+            category[i] = dictionaryId(incident.category, dictionary_ids, dictionary);
+            district[i] = dictionaryId(incident.district, dictionary_ids, dictionary);
+            descript[i] = dictionaryId(incident.descript, dictionary_ids, dictionary);
+        }
+
+        int dictionary_size = dictionary.size();
+        int dictionary_bytes = 0;
+        for (byte[] entry : dictionary) {
+            dictionary_bytes += 2 + entry.length;
+        }
+
+        IncidentSnapshot.Layout layout = new IncidentSnapshot.Layout(row_count, dictionary_size);
+        long file_size = layout.dictionary_data_offset + dictionary_bytes;
+
+        // a name of its own, so that writers of the same snapshot do not share a temp file
+        File temp = File.createTempFile(file.getName(), ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        boolean moved = false;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+            try {
+                raf.setLength(file_size);
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, file_size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+                // header
+                buffer.putInt(IncidentSnapshot.MAGIC);
+                buffer.putInt(IncidentSnapshot.VERSION);
+                buffer.putInt(row_count);
+                buffer.putInt(dictionary_size);
+                buffer.putLong(window_start);
+                buffer.putLong(System.currentTimeMillis());
+
+                // columns
+                for (int i = 0; i < row_count; i++) {
+                    buffer.putLong(layout.id_offset + 8 * i, rows.get(i).id);
+                    buffer.putFloat(layout.lat_offset + 4 * i, rows.get(i).lat);
+                    buffer.putFloat(layout.lon_offset + 4 * i, rows.get(i).lon);
+                    buffer.putInt(layout.time_offset + 4 * i, rows.get(i).time);
+                    buffer.putShort(layout.category_offset + 2 * i, category[i]);
+                    buffer.putShort(layout.district_offset + 2 * i, district[i]);
+                    buffer.putShort(layout.descript_offset + 2 * i, descript[i]);
+                }
+
+                // dictionary, an offset table followed by length prefixed UTF-8 strings
+                int position = layout.dictionary_data_offset;
+                for (int i = 0; i < dictionary_size; i++) {
+                    byte[] entry = dictionary.get(i);
+                    buffer.putInt(layout.dictionary_offset + 4 * i, position);
+                    buffer.putShort(position, (short) entry.length);
+                    buffer.position(position + 2);
+                    buffer.put(entry);
+                    position += 2 + entry.length;
+                }
+
+                buffer.force();
+            } finally {
+                raf.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                // some file systems will not rename over an existing file
+                if (!file.delete() || !temp.renameTo(file)) {
+                    throw new IOException("Snapshot could not be moved into place: " + file);
+                }
+            }
+            moved = true;
+        } finally {
+            if (!moved) {
+                temp.delete();
+            }
+        }
+    }
+
+
+    private static short dictionaryId(String s, HashMap<String, Integer> dictionary_ids,
+                                      List<byte[]> dictionary) throws IOException {
+        Integer id = dictionary_ids.get(s);
+        if (id == null) {
+            id = dictionary.size();
+            if (id > Short.MAX_VALUE) {
+                throw new IOException("Snapshot string dictionary is full");
+            }
+
+            byte[] bytes = s.getBytes(UTF_8);
+            if (bytes.length > Short.MAX_VALUE) {
+                throw new IOException("Snapshot string is too long");
+            }
+
+            dictionary_ids.put(s, id);
+            dictionary.add(bytes);
+        }
+        return (short) (int) id;
+    }
+}
@@ -0,0 +1,251 @@
+package com.olm.crimemap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Brings the local incident snapshot up to date with data.sfgov.org.
+ *
+ * Only the incidents since the last day held in the snapshot are downloaded, in pages of
+ * PAGE_SIZE.  They are merged by pdid with the rows already held, rows older than the query
+ * window are dropped, and the snapshot is written again.  The district aggregate of the new
+ * snapshot is then computed and saved next to it, so that the district map can be drawn without
+ * touching the rows at all.
+ *
+ * The time order of the snapshot, which all its queries rely on, is restored by the writer.
+ * The spatial grid is rebuilt from the new snapshot when it is opened.
+ *
+ * Both the activity and the sync job may start a sync, so syncs are run one at a time.  A sync
+ * waiting for another then only downloads what that one did not.
+ */
+
+public class IncidentSync {
+
+    static final int PAGE_SIZE = 1000;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    // held for the whole of a sync, which reads, replaces and then reads again the files
+    private static final Object SYNC_LOCK = new Object();
+
+
+    /**
+     * Figures recorded for each sync, for observability
+     */
+    public static class Stats {
+        public long duration_ms;
+        public long bytes;
+        public int pages;
+        public int downloaded_rows;
+        public int stored_rows;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%dms, %d bytes in %d pages, %d rows downloaded, " +
+                    "%d rows stored", duration_ms, bytes, pages, downloaded_rows, stored_rows);
+        }
+    }
+
+
+    private final ResilientFetcher mFetcher;
+    private final String mDateFormat;
+
+
+    /**
+     * @param fetcher ResilientFetcher for the page requests, IncidentQueries.snapshotPage
+     * @param date_format format of the date column of the pages, SFPD_Incidents_query_date_format
+     */
+    public IncidentSync(ResilientFetcher fetcher, String date_format){
+        mFetcher = fetcher;
+        mDateFormat = date_format;
+    }
+
+
+    /**
+     * Update the snapshot file for the given window, and save its district aggregate.
+     *
+     * @param snapshot_file snapshot to update, which need not exist yet
+     * @param aggregate_file where the district aggregate is saved
+     * @param window_start ms since epoc, start of the query window
+     * @return Stats of the sync
+     */
+    public Stats sync(File snapshot_file, File aggregate_file, long window_start)
+            throws IOException {
+        synchronized (SYNC_LOCK) {
+            return syncLocked(snapshot_file, aggregate_file, window_start);
+        }
+    }
+
+    private Stats syncLocked(File snapshot_file, File aggregate_file, long window_start)
+            throws IOException {
+
+        Stats stats = new Stats();
+        long start = System.currentTimeMillis();
+
+        // the rows already held, by pdid, and where the download can start from
+        HashMap<Long, Incident> incidents = new HashMap<>();
+        long download_from = window_start;
+
+        if (snapshot_file.exists()) {
+            try {
+                IncidentSnapshot old = IncidentSnapshot.open(snapshot_file);
+                download_from = keepRows(old, window_start, incidents);
+            } catch (IOException e) {
+                // an unreadable snapshot is replaced by a full download
+                incidents.clear();
+            }
+        }
+
+        // download the pages of the delta
+        IncidentFeedParser parser = new IncidentFeedParser(mDateFormat);
+
+        int page_rows;
+        do {
+            byte[] page = mFetcher.fetch(IncidentQueries.snapshotPage(download_from, PAGE_SIZE,
+                    stats.pages * PAGE_SIZE).toUrl());
+
+            stats.pages++;
+            stats.bytes += page.length;
+
+            List<Incident> rows = parser.parse(new ByteArrayInputStream(page));
+            page_rows = rows.size();
+            stats.downloaded_rows += page_rows;
+
+            for (Incident incident : rows) {
+                if (incident.time * 1000L >= window_start) {
+                    incidents.put(incident.id, incident);
+                }
+            }
+        } while (page_rows >= PAGE_SIZE);
+
+        IncidentSnapshotWriter.write(snapshot_file, new ArrayList<>(incidents.values()),
+                window_start);
+        stats.stored_rows = incidents.size();
+
+        // pre-compute the district map of the new snapshot
+        writeDistrictAggregate(aggregate_file, IncidentSnapshot.open(snapshot_file), window_start);
+
+        stats.duration_ms = System.currentTimeMillis() - start;
+        return stats;
+    }
+
+
+    /**
+     * Copy the rows of the old snapshot that are still inside the window
+     *
+     * @return ms since epoc the download should start from, the day before the latest row,
+     * since the feed only gives the day in its date column.  The query rounds it to the start of
+     * that day.
+     */
+    private static long keepRows(IncidentSnapshot old, long window_start,
+                                 HashMap<Long, Incident> incidents) {
+
+        int row_count = old.getRowCount();
+        if (!old.covers(window_start) || row_count == 0) {
+            return window_start;
+        }
+
+        for (int row = old.firstRowAtOrAfter(IncidentSnapshot.toSeconds(window_start));
+             row < row_count; row++) {
+            incidents.put(old.getId(row), new Incident(old.getId(row), old.getLat(row),
+                    old.getLon(row), old.getTime(row), old.getCategory(row),
+                    old.getDistrict(row), old.getDescript(row)));
+        }
+
+        long latest = old.getTime(row_count - 1) * 1000L;
+        return Math.max(window_start, latest - DAY_MS);
+    }
+
+
+    /**
+     * Save the district query result of the snapshot, tagged with the window and the snapshot
+     * creation time it is valid for.
+     */
+    static void writeDistrictAggregate(File file, IncidentSnapshot snapshot, long window_start)
+            throws IOException {
+
+        try {
+            JSONObject aggregate = new JSONObject();
+            aggregate.put("window_start", window_start);
+            aggregate.put("snapshot_created_at", snapshot.getCreatedAt());
+            aggregate.put("districts", IncidentGeoJson.districtCollection(
+                    snapshot.districtSummaries(window_start)));
+
+            File temp = File.createTempFile(file.getName(), ".tmp",
+                    file.getAbsoluteFile().getParentFile());
+            boolean moved = false;
+            try {
+                OutputStream out = new FileOutputStream(temp);
+                try {
+                    out.write(aggregate.toString().getBytes("UTF-8"));
+                } finally {
+                    out.close();
+                }
+
+                if (!temp.renameTo(file)) {
+                    throw new IOException("District aggregate could not be moved into place");
+                }
+                moved = true;
+            } finally {
+                if (!moved) {
+                    temp.delete();
+                }
+            }
+
+        } catch (JSONException e) {
+            throw new IOException("District aggregate could not be built", e);
+        }
+    }
+
+
+    /**
+     * Read the saved district query result, if it was computed from the given snapshot for the
+     * given window.
+     *
+     * @return the geoJSON district results, or null if there are none that can be used
+     */
+    public static String readDistrictAggregate(File file, IncidentSnapshot snapshot,
+                                               long window_start) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            InputStream in = new FileInputStream(file);
+            try {
+                int read = 0;
+                while (read < bytes.length) {
+                    int count = in.read(bytes, read, bytes.length - read);
+                    if (count < 0) {
+                        break;
+                    }
+                    read += count;
+                }
+            } finally {
+                in.close();
+            }
+
+            JSONObject aggregate = new JSONObject(new String(bytes, "UTF-8"));
+            if (aggregate.getLong("window_start") != window_start ||
+                    aggregate.getLong("snapshot_created_at") != snapshot.getCreatedAt()) {
+                return null;
+            }
+            return aggregate.getJSONObject("districts").toString();
+
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.olm.crimemap;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Periodic background job keeping the local incident snapshot fresh, so that opening the app is
+ * a purely local read.
+ *
+ * The job runs every SYNC_PERIOD_MS, only while the device is idle, charging and on an unmetered
+ * network.  It runs IncidentSync, and records the duration, bytes and row counts of each sync in
+ * the shared preferences SYNC_STATS_PREFS as well as the log.
+ *
+ * JobScheduler needs Lollipop; on older devices the snapshot is only updated by the app itself.
+ */
+
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class IncidentSyncService extends JobService {
+
+    private static final String TAG = "IncidentSyncService";
+    private static final int JOB_ID = 1;
+    private static final long SYNC_PERIOD_MS = 6 * 60 * 60 * 1000L;
+
+    static final String SYNC_STATS_PREFS = "sync_stats";
+
+    private SyncTask mTask;
+
+
+    /**
+     * Schedule the periodic sync, unless it is already scheduled or the device is too old
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, IncidentSyncService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setPeriodic(SYNC_PERIOD_MS)
+                .setPersisted(true)
+                .build());
+    }
+
+
+    /**
+     * Run a sync of the snapshot in the app files directory, recording its stats.
+     * Shared by the job and the app's own download.
+     *
+     * @return Stats of the sync
+     */
+    static IncidentSync.Stats syncNow(Context context, ResilientFetcher fetcher,
+                                      long window_start) throws IOException {
+
+        IncidentSync sync = new IncidentSync(fetcher,
+                context.getString(R.string.SFPD_Incidents_query_date_format));
+
+        IncidentSync.Stats stats = sync.sync(
+                new File(context.getFilesDir(), MapsActivity.SNAPSHOT_FILE),
+                new File(context.getFilesDir(), MapsActivity.DISTRICT_AGGREGATE_FILE),
+                window_start);
+
+        Log.i(TAG, "Incident sync: " + stats);
+
+        SharedPreferences.Editor editor =
+                context.getSharedPreferences(SYNC_STATS_PREFS, Context.MODE_PRIVATE).edit();
+        editor.putLong("last_sync_time", System.currentTimeMillis());
+        editor.putLong("last_sync_duration_ms", stats.duration_ms);
+        editor.putLong("last_sync_bytes", stats.bytes);
+        editor.putInt("last_sync_pages", stats.pages);
+        editor.putInt("last_sync_downloaded_rows", stats.downloaded_rows);
+        editor.putInt("last_sync_stored_rows", stats.stored_rows);
+        editor.apply();
+
+        return stats;
+    }
+
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mTask = new SyncTask(params);
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+
+        // the work continues on the task
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // the constraints are no longer met, try again later
+        if (mTask != null) {
+            mTask.cancel(true);
+        }
+        return true;
+    }
+
+
+    /**
+     * AsyncTask running the sync off the main thread of the service
+     */
+    private class SyncTask extends AsyncTask<Void, Void, Boolean> {
+
+        private final JobParameters mParams;
+
+        SyncTask(JobParameters params){
+            mParams = params;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            try {
+                syncNow(IncidentSyncService.this, new ResilientFetcher(),
+                        MapsActivity.queryWindowStart());
+                return true;
+
+            } catch (IOException e) {
+                Log.e(TAG, "Incident sync failed", e);
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean success) {
+            jobFinished(mParams, !success);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.olm.crimemap;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Keeps the most recent request latencies and reports their percentiles.
+ * Used by ResilientFetcher to size its timeouts and hedge delay, and exposed for monitoring.
+ */
+
+public class LatencyTracker {
+
+    private static final int DEFAULT_CAPACITY = 100;
+
+    // ring buffer of the most recent latencies, in ms
+    private final long[] mSamples;
+    private int mNext = 0;
+    private int mCount = 0;
+
+
+    public LatencyTracker(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LatencyTracker(int capacity){
+        mSamples = new long[capacity];
+    }
+
+
+    public synchronized void record(long latency_ms) {
+        mSamples[mNext] = latency_ms;
+        mNext = (mNext + 1) % mSamples.length;
+        if (mCount < mSamples.length) {
+            mCount++;
+        }
+    }
+
+    /**
+     * @return number of latencies held, at most the capacity
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Nearest rank percentile of the held latencies
+     *
+     * @param percentile between 0 and 100
+     * @return latency in ms, or -1 if nothing has been recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return -1;
+        }
+
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+
+        int rank = (int) Math.ceil(percentile / 100.0 * mCount);
+        return sorted[Math.max(0, Math.min(mCount - 1, rank - 1))];
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d p50=%dms p95=%dms p99=%dms",
+                getCount(), getPercentile(50), getPercentile(95), getPercentile(99));
+    }
+}
@@ -1,14 +1,25 @@
 package com.olm.crimemap;
 
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
 import android.animation.ValueAnimator;
+import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.os.Build;
 import android.view.View;
-import android.view.ViewGroup;
 
 /**
  * Created by Tyson Macdonald
  *
  * Class for animation the width of a view, opening and closing
  * With commands to extend and retract the animation.
+ *
+ * The view keeps its full width throughout, and only the visible part of it is animated, so that
+ * no frame needs a new layout pass.  The view is revealed from its right edge by its clip bounds,
+ * or on devices before API 18 scaled from its right edge.  Its visibility, and so the layout, only
+ * changes at the two ends of the animation.
+ *
+ * The animation is measured as the FrameMetricsMonitor.OP_ANIMATION operation.
  */
 
 public class LayoutWidthAnimator {
@@ -17,8 +28,12 @@ public class LayoutWidthAnimator {
 
     final ValueAnimator anim;
 
+    // reused for the clip bounds of every frame
+    private final Rect mClip = new Rect();
 
-    public LayoutWidthAnimator(final View layout, final int width_limit){
+
+    public LayoutWidthAnimator(final View layout, final int width_limit,
+                               final FrameMetricsMonitor frame_monitor){
 
         anim = ValueAnimator.ofInt(0, width_limit);
 
@@ -31,22 +46,56 @@ public class LayoutWidthAnimator {
                 }
 
                 int val = (Integer) valueAnimator.getAnimatedValue();
-                ViewGroup.LayoutParams layoutParams = layout.getLayoutParams();
-                layoutParams.width = (val > width_limit ? width_limit : val);
-                layout.setLayoutParams(layoutParams);
+                int width = (val > width_limit ? width_limit : val);
+                reveal(layout, width, width_limit);
 
-                // if after the frame change, the height is zero, set gone
-                if (layoutParams.width == 0){
+                // if after the frame change, the width is zero, set gone
+                if (width == 0){
                     layout.setVisibility(View.GONE);
                 }
 
             }
         });
+
+        anim.addListener(new AnimatorListenerAdapter() {
+            @Override
+            public void onAnimationStart(Animator animation) {
+                frame_monitor.begin(FrameMetricsMonitor.OP_ANIMATION);
+            }
+
+            @Override
+            public void onAnimationEnd(Animator animation) {
+                frame_monitor.end(FrameMetricsMonitor.OP_ANIMATION);
+            }
+        });
         anim.setDuration(ANIMATION_TIME); //set the animation time
 
     }
 
 
+    /**
+     * Show only the given width of the view, from its right edge
+     */
+    private void reveal(View layout, int width, int width_limit) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            clip(layout, width, width_limit);
+        } else {
+            layout.setPivotX(width_limit);
+            layout.setScaleX((float) width / width_limit);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void clip(View layout, int width, int width_limit) {
+        if (width >= width_limit) {
+            layout.setClipBounds(null);
+        } else {
+            mClip.set(width_limit - width, 0, width_limit, layout.getHeight());
+            layout.setClipBounds(mClip);
+        }
+    }
+
+
     public void extend(){
         anim.start();
     }
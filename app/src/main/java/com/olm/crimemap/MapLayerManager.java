@@ -0,0 +1,229 @@
+package com.olm.crimemap;
+
+import com.google.maps.android.geojson.GeoJsonFeature;
+import com.google.maps.android.geojson.GeoJsonLayer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the map layers alive between mode switches, so that going from a search back to the
+ * district map, or repeating a recent search, only adds an already styled layer back to the map
+ * instead of clearing the map and parsing the results again.
+ *
+ * The district layer is always kept.  Search layers are kept by key in least recently used order,
+ * and the oldest are dropped once their total marker count is over the limit, except for the one
+ * on the map.  The geoJSON results of each search layer are kept with it, for the saved state.
+ *
+ * Only one layer is on the map at a time.  A GeoJsonLayer of android-maps-utils can not be hidden,
+ * only taken off the map and added again, which keeps its parsed and styled features and only
+ * creates their markers again.  As its click listener is set on the map itself, the listener of
+ * a layer is set again each time it is shown.
+ *
+ * Putting a layer on the map is measured as the FrameMetricsMonitor.OP_LAYER_ADD operation.
+ */
+
+public class MapLayerManager {
+
+    private static class Entry {
+        final GeoJsonLayer layer;
+        final GeoJsonLayer.GeoJsonOnFeatureClickListener listener;
+        int marker_count;
+
+        // geoJSON the layer was built from, null until known
+        String results;
+
+        Entry(GeoJsonLayer layer, GeoJsonLayer.GeoJsonOnFeatureClickListener listener){
+            this.layer = layer;
+            this.listener = listener;
+            this.marker_count = countFeatures(layer);
+        }
+    }
+
+    private final int mMaxSearchMarkers;
+    private final FrameMetricsMonitor mFrameMonitor;
+
+    private Entry mDistrict;
+    private final LinkedHashMap<String, Entry> mSearches = new LinkedHashMap<>(16, 0.75f, true);
+    private int mSearchMarkers = 0;
+
+    // layer currently on the map, or null
+    private Entry mShown;
+
+
+    /**
+     * @param max_search_markers total number of markers the kept search layers may hold
+     * @param frame_monitor FrameMetricsMonitor measuring the frames of each layer add
+     */
+    public MapLayerManager(int max_search_markers, FrameMetricsMonitor frame_monitor){
+        mMaxSearchMarkers = max_search_markers;
+        mFrameMonitor = frame_monitor;
+    }
+
+
+    public boolean hasDistrictLayer() {
+        return mDistrict != null;
+    }
+
+    public boolean hasSearchLayer(String key) {
+        return mSearches.containsKey(key);
+    }
+
+
+    /**
+     * Keep the district layer, replacing any earlier one
+     */
+    public void setDistrictLayer(GeoJsonLayer layer,
+                                 GeoJsonLayer.GeoJsonOnFeatureClickListener listener) {
+        if (mDistrict != null) {
+            remove(mDistrict);
+        }
+        mDistrict = new Entry(layer, listener);
+    }
+
+    /**
+     * Keep a search layer under the given key, dropping the least recently used search layers
+     * while the total marker count is over the limit.
+     */
+    public void putSearchLayer(String key, GeoJsonLayer layer,
+                               GeoJsonLayer.GeoJsonOnFeatureClickListener listener) {
+
+        Entry old = mSearches.remove(key);
+        if (old != null) {
+            remove(old);
+            mSearchMarkers -= old.marker_count;
+        }
+
+        Entry entry = new Entry(layer, listener);
+        mSearches.put(key, entry);
+        mSearchMarkers += entry.marker_count;
+
+        evictSearchLayers(entry);
+    }
+
+    /**
+     * Keep the geoJSON results of a search layer, to be saved with its key
+     */
+    public void setSearchResults(String key, String results) {
+        Entry entry = mSearches.get(key);
+        if (entry != null) {
+            entry.results = results;
+        }
+    }
+
+    /**
+     * @return the geoJSON results of the search layer, or null if it is not kept or its results
+     * are not complete
+     */
+    public String getSearchResults(String key) {
+        Entry entry = mSearches.get(key);
+        return entry == null ? null : entry.results;
+    }
+
+    /**
+     * Count the markers of a kept search layer again, after features were added to it
+     */
+    public void searchLayerChanged(String key) {
+        Entry entry = mSearches.get(key);
+        if (entry == null) {
+            return;
+        }
+
+        int marker_count = countFeatures(entry.layer);
+        mSearchMarkers += marker_count - entry.marker_count;
+        entry.marker_count = marker_count;
+
+        evictSearchLayers(entry);
+    }
+
+    /**
+     * Drop the least recently used search layers while over the marker limit
+     * @param entry the layer just put or changed, which is always kept
+     */
+    private void evictSearchLayers(Entry entry) {
+        Iterator<Map.Entry<String, Entry>> eldest = mSearches.entrySet().iterator();
+        while (mSearchMarkers > mMaxSearchMarkers && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+
+            // the newest and the shown layer are kept even when over the limit
+            if (evicted == entry || evicted == mShown) {
+                continue;
+            }
+
+            remove(evicted);
+            mSearchMarkers -= evicted.marker_count;
+            eldest.remove();
+        }
+    }
+
+
+    /**
+     * Put the district layer on the map in place of whatever is shown
+     * @return false if there is no district layer
+     */
+    public boolean showDistrictLayer() {
+        if (mDistrict == null) {
+            return false;
+        }
+        show(mDistrict);
+        return true;
+    }
+
+    /**
+     * Put the search layer with the given key on the map in place of whatever is shown
+     * @return false if there is no layer kept for the key
+     */
+    public boolean showSearchLayer(String key) {
+        Entry entry = mSearches.get(key);
+        if (entry == null) {
+            return false;
+        }
+        show(entry);
+        return true;
+    }
+
+    /**
+     * Take the shown layer off the map, keeping it for later
+     */
+    public void hideAll() {
+        if (mShown != null) {
+            remove(mShown);
+        }
+    }
+
+
+    private void show(Entry entry) {
+        if (mShown == entry && entry.layer.isLayerOnMap()) {
+            return;
+        }
+
+        mFrameMonitor.begin(FrameMetricsMonitor.OP_LAYER_ADD);
+        try {
+            hideAll();
+
+            entry.layer.addLayerToMap();
+            entry.layer.setOnFeatureClickListener(entry.listener);
+            mShown = entry;
+        } finally {
+            mFrameMonitor.end(FrameMetricsMonitor.OP_LAYER_ADD);
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entry.layer.isLayerOnMap()) {
+            entry.layer.removeLayerFromMap();
+        }
+        if (mShown == entry) {
+            mShown = null;
+        }
+    }
+
+    private static int countFeatures(GeoJsonLayer layer) {
+        int count = 0;
+        for (GeoJsonFeature ignored : layer.getFeatures()) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -2,9 +2,13 @@ package com.olm.crimemap;
 
 import android.graphics.Color;
 import android.net.Uri;
+import android.net.http.HttpResponseCache;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
@@ -38,16 +42,16 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * By Tyson Macdonald, Sept 18, 2016
@@ -59,9 +63,10 @@ import java.util.Locale;
  * a larger number of incidents.  Clicking on each marker will reveal the incident count,
  * while panning the map to place the marker in the center.
  *
- * The initial query is defined in the string resource, SFPD_Incidents_request,
- * which requests the number in incidents per SF police district and the location of that district,
- * in order of incident count. Further, that ordering is made descending by the string resource DESC.
+ * The initial query is built by IncidentQueries.districtCounts, which requests the number in
+ * incidents per SF police district and the location of that district, in descending order of
+ * incident count.  All queries are SoqlQuery objects, giving the same URL for equivalent queries,
+ * so that responses can be cached by the installed HttpResponseCache.
  *
  * When a valid geoJSON result is returned, the order of the groups is recorded in mPointOrder
  * for later reference.
@@ -69,6 +74,10 @@ import java.util.Locale;
  * data is lost -- and the map layers are modified to include the location of the police districts.
  * Marker colors are assigned by the ordering recorded in mPointOrder.
  *
+ * Once the district map is loaded, a DistrictBreakdown of every district is computed from the
+ * snapshot in the background.  Clicking a district marker then shows the top categories, the
+ * hourly distribution and the weekly trend of that district without any further query.
+ *
  * The application also has a search term function, which is available via the magnifying glass icon
  * in the app toolbar.  Tapping on the magnifying glass will cause a search term text box to
  * animate open.  Tapping on the icon again, will cause the search box to close.
@@ -77,12 +86,34 @@ import java.util.Locale;
  * search term being displayed as the toolbar title.  If the search term is included in any database
  * field, a marker is shown on the map.
  *
+ * Several terms, and category:, district:, since: and until: filters, may be entered separated by
+ * commas, as described in SearchRequest.  SearchEngine runs one sub-query per term in parallel, and
+ * the markers of each are added to the map as soon as it completes, without duplicates.
+ *
  * TODO: implement paging though the search term results as there can be many.
  *
  * While search results are displayed, hitting the system back button will return the map to showing
  * the original district data.
  *
- * All queries are made in an asyncTask, DownloadGeoJsonFile.
+ * All queries are made in an asyncTask, DownloadGeoJsonFile, through ResilientFetcher, which adapts
+ * its timeouts to the observed latency, hedges slow requests and stops calling data.sfgov.org while
+ * it is failing.  When a query fails, previously retrieved results or the snapshot are shown instead.
+ *
+ * The incidents of the query window are also kept on the device in a memory-mapped snapshot,
+ * IncidentSnapshot.  Once the snapshot has been downloaded, the district and search queries are
+ * answered from it by the asyncTask QuerySnapshot, and data.sfgov.org is not contacted at startup.
+ * The snapshot is kept fresh by IncidentSyncService, a periodic background job, and the district
+ * results are pre-computed with it.  Only when the snapshot is missing or older than
+ * SNAPSHOT_MAX_AGE_MS does the app query data.sfgov.org and sync the snapshot itself.
+ *
+ * A long press on the map, or the nearby icon in the toolbar for the center of the map, shows the
+ * incidents within NEARBY_RADIUS_METERS of that point as search markers.  These come from
+ * IncidentGridIndex, a grid of the snapshot rows built in the background once the snapshot is open.
+ * Searches of either kind only use a snapshot younger than SNAPSHOT_MAX_AGE_MS, otherwise they
+ * query data.sfgov.org and fall back to the snapshot if that fails.
+ *
+ * The map is never cleared.  Styled layers are kept by MapLayerManager and switched on and off the
+ * map, so returning to the district map, or repeating a recent search, needs no new parsing.
  *
  */
 
@@ -91,6 +122,26 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
     private static final String TAG = "MapsActivity";
     private static final int NUMBER_QUERY_MONTHS = -1;  // how many months do we look back in time
     private static final float DEFAULT_ZOOM = 11.5f;
+    static final String SNAPSHOT_FILE = "incidents.snapshot";
+    static final String DISTRICT_AGGREGATE_FILE = "districts.json";
+    private static final long SNAPSHOT_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+    private static final long HTTP_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final int NEARBY_RADIUS_METERS = 400;
+    private static final int MAX_KEPT_SEARCH_MARKERS = 2000;
+
+    // shared by every query, so the latency history outlives the activity
+    private static final ResilientFetcher sFetcher = new ResilientFetcher();
+
+    // the snapshot pages are much larger than the queries, so their latency is tracked apart
+    private static final ResilientFetcher sSyncFetcher = new ResilientFetcher();
+
+    // runs the sub-queries of every search, a few at a time
+    private static final int SEARCH_THREADS = 3;
+    private static final SearchEngine sSearchEngine = new SearchEngine(SEARCH_THREADS);
+
+    // builds and styles the layers of search results in the order they arrive, off the UI thread
+    private static final ExecutorService sSearchLayerExecutor =
+            Executors.newSingleThreadExecutor();
     private GoogleMap mMap;
 
     private EditText mSearchBox;
@@ -99,6 +150,22 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
     private boolean mIsFileParsingError = false;
     private long mQueryDate;
 
+    // local copy of the incidents, null until it has been downloaded once
+    private IncidentSnapshot mSnapshot;
+
+    // spatial index of the snapshot rows, null until built
+    private IncidentGridIndex mIndex;
+
+    // breakdown of each district by name, computed from mBreakdownSnapshot
+    private HashMap<String, DistrictBreakdown> mBreakdowns = new HashMap<>();
+    private IncidentSnapshot mBreakdownSnapshot;
+
+    // frame times of the animation and map updates, reported in the log when the activity stops
+    private FrameMetricsMonitor mFrameMonitor;
+
+    // the district layer and recent search layers, kept between mode switches
+    private MapLayerManager mLayers;
+
 
     private HashMap<String,String> mPointOrder = new HashMap<>();
     private static final String POINT_ORDER_KEY = "mPointOrder_key";
@@ -121,6 +188,23 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
     private String mSearchResults = "";
     private static final String SEARCH_RESULTS_KEY = "mSearchResults_key";
 
+    // key of the search layer being shown, or waited for
+    private String mSearchLayerKey = "";
+    private static final String SEARCH_LAYER_KEY = "mSearchLayerKey_key";
+
+    // the running multi-term search
+    private SearchEngine.Search mSearch;
+
+    // runs search results on the UI thread
+    private final Executor mUiExecutor = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable runnable) {
+            mHandler.post(runnable);
+        }
+    };
+
 
 
     /**
@@ -152,6 +236,11 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
         // Remove default title text
         getSupportActionBar().setDisplayShowTitleEnabled(true);
 
+        // measure the frames of the UI operations at the display refresh rate
+        mFrameMonitor = new FrameMetricsMonitor(
+                getWindowManager().getDefaultDisplay().getRefreshRate());
+        mLayers = new MapLayerManager(MAX_KEPT_SEARCH_MARKERS, mFrameMonitor);
+
         // create a search box for the toolbar
         mSearchBox = (EditText) findViewById(R.id.searchBox);
         FrameLayout searchLayout = (FrameLayout) findViewById(R.id.searchBoxLayout);
@@ -159,7 +248,7 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
 
         // set the animation class for the search box
         mSearchBoxAnimator = new LayoutWidthAnimator(searchLayout,
-                getResources().getDimensionPixelSize(R.dimen.search_box_length));
+                getResources().getDimensionPixelSize(R.dimen.search_box_length), mFrameMonitor);
 
 
         // setup listener for the ENTER signal from the keyboard
@@ -180,15 +269,17 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
         });
 
 
+        // cache the responses of data.sfgov.org by their canonical query URL
+        installHttpCache();
+
         // get the query date, one month ago
-        Calendar cal = Calendar.getInstance();
-        cal.add(Calendar.MONTH, NUMBER_QUERY_MONTHS);
-        cal.set(Calendar.HOUR_OF_DAY, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.SECOND, 0);
-        cal.set(Calendar.MILLISECOND, 0);
-        mQueryDate = cal.getTimeInMillis();
+        mQueryDate = queryWindowStart();
+
+        // map the incidents saved by a previous launch, only the header is read here
+        openSnapshot();
 
+        // keep the snapshot fresh in the background from now on
+        IncidentSyncService.schedule(this);
 
 
         // ATTENTION: This was auto-generated to implement the App Indexing API.
@@ -237,6 +328,9 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
         );
         AppIndex.AppIndexApi.end(client, viewAction);
         client.disconnect();
+
+        // frame times of the operations run so far
+        Log.i(TAG, "Frame times per operation:\n" + mFrameMonitor.getReport());
     }
 
     // Menu icons are inflated just as they were with actionbar
@@ -257,6 +351,14 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
                 searchButtonPushed();
                 break;
 
+            case R.id.nearby:
+
+                // search around the center of the visible map
+                if (mMap != null) {
+                    startNearbySearch(mMap.getCameraPosition().target);
+                }
+                break;
+
         }
         return super.onOptionsItemSelected(item);
     }
@@ -271,6 +373,7 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
         outState.putString(DISTRICT_RESULTS_KEY, mDistrictResults);
         outState.putSerializable(POINT_ORDER_KEY, mPointOrder);
         outState.putString(SEARCH_RESULTS_KEY, mSearchResults);
+        outState.putString(SEARCH_LAYER_KEY, mSearchLayerKey);
     }
 
     @Override
@@ -289,6 +392,8 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
 
         mSearchResults = savedInstanceState.getString(SEARCH_RESULTS_KEY);
 
+        mSearchLayerKey = savedInstanceState.getString(SEARCH_LAYER_KEY);
+
         mPointOrder = (HashMap<String,String>) savedInstanceState.getSerializable(POINT_ORDER_KEY);
     }
 
@@ -333,11 +438,12 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
     @Override
     public void onBackPressed(){
 
-        if(!mDistrictResults.isEmpty()) {
+        searchBoxClear(null);
+
+        if(mLayers.hasDistrictLayer() || !mDistrictResults.isEmpty()) {
             restoreDistrictMap();
         }
 
-        searchBoxClear(null);
         getSupportActionBar().setTitle(getString(R.string.app_name));
 
     }
@@ -349,27 +455,207 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
         mSearchBox.setText("");
 
         mSearchInProgress = false;
+
+        // drop the results still to come from the last search
+        if (mSearch != null) {
+            mSearch.cancel();
+            mSearch = null;
+        }
     }
 
 
     /**
      * Method to initialize the search based on the given string
-     * @param s String to form a database request with.
+     * @param s String of search terms and filters to form the database requests with.
      */
     private void startSearch(String s) {
 
+        SearchRequest request = SearchRequest.parse(s, mQueryDate);
+        if (request.isEmpty()) {
+            return;
+        }
+
+        // searching is initiated
+        mSearchInProgress = true;
+
+        // set the activity title to reflect the new search terms
+        String search_feedback = String.format(getString(R.string.search_feedback), request);
+        getSupportActionBar().setTitle(search_feedback);
+
+        if (mSearch != null) {
+            mSearch.cancel();
+            mSearch = null;
+        }
+
+        // show a recent, completed search again without a new query
+        mSearchLayerKey = "search:" + request.getKey();
+        String kept_results = mLayers.getSearchResults(mSearchLayerKey);
+        if (kept_results != null && mLayers.showSearchLayer(mSearchLayerKey)) {
+            mSearchResults = kept_results;
+            return;
+        }
+
+        // an empty layer is shown straight away, and filled as the sub-queries complete
+        GeoJsonLayer layer;
+        try {
+            layer = new GeoJsonLayer(mMap, IncidentGeoJson.collection(new JSONArray()));
+        } catch (JSONException e) {
+            Log.e(TAG, "Empty search layer could not be created");
+            return;
+        }
+        addGeoJsonSearchLayerToMap(layer, mSearchLayerKey);
+
+        mSearch = sSearchEngine.start(request, searchSource(request),
+                new SearchResultsListener(layer, mSearchLayerKey), sSearchLayerExecutor);
+    }
+
+    /**
+     * @return the snapshot if it can answer the queries of the request, otherwise
+     * data.sfgov.org, falling back to whatever the snapshot holds
+     */
+    private SearchEngine.Source searchSource(SearchRequest request) {
+
+        SnapshotSearchSource local = mSnapshot == null ? null : new SnapshotSearchSource(mSnapshot);
+
+        // the sub-queries of the terms only differ in their values, so one stands for all
+        SoqlQuery query = IncidentQueries.search(request,
+                request.getTerms().isEmpty() ? "" : request.getTerms().get(0));
+        if (local != null && isAnsweredLocally(query)) {
+            return local;
+        }
+
+        return new NetworkSearchSource(sFetcher, local);
+    }
+
+    /**
+     * Adds the markers of each completed sub-query to the search layer.
+     *
+     * Called on sSearchLayerExecutor, where the markers are built and styled, so that only
+     * adding them to the shown layer is left to the UI thread.
+     */
+    private class SearchResultsListener implements SearchEngine.Listener {
+
+        private final GeoJsonLayer mLayer;
+        private final String mKey;
+
+        // the merged features found so far, saved for restoration once the search completes
+        private final JSONArray mFeatures = new JSONArray();
+
+        SearchResultsListener(GeoJsonLayer layer, String key){
+            mLayer = layer;
+            mKey = key;
+        }
+
+        @Override
+        public void onResults(final SearchEngine.Search search, List<JSONObject> new_features) {
+            final GeoJsonLayer parsed;
+            try {
+                JSONArray features = new JSONArray();
+                for (JSONObject feature : new_features) {
+                    features.put(feature);
+                    mFeatures.put(feature);
+                }
+
+                // parse and style the new features here
+                parsed = new GeoJsonLayer(mMap, IncidentGeoJson.collection(features));
+                modifySearchMapMarkers(parsed);
+
+            } catch (JSONException e) {
+                Log.e(TAG, "Search results could not be converted to a JSONObject");
+                return;
+            }
+
+            // then move them into the shown layer
+            mUiExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (search.isCancelled()) {
+                        return;
+                    }
+
+                    mFrameMonitor.begin(FrameMetricsMonitor.OP_LAYER_ADD);
+                    try {
+                        for (GeoJsonFeature feature : parsed.getFeatures()) {
+                            mLayer.addFeature(feature);
+                        }
+                    } finally {
+                        mFrameMonitor.end(FrameMetricsMonitor.OP_LAYER_ADD);
+                    }
+                    mLayers.searchLayerChanged(mKey);
+                }
+            });
+        }
+
+        @Override
+        public void onComplete(final SearchEngine.Search search, final int failed_sub_queries) {
+            String saved_results = null;
+            try {
+                saved_results = IncidentGeoJson.collection(mFeatures).toString();
+            } catch (JSONException e) {
+                Log.e(TAG, "Search results could not be saved");
+            }
+            final String results = saved_results;
+
+            mUiExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (search == mSearch) {
+                        mSearch = null;
+                    }
+
+                    // Save the result for later restoration, unless a newer search replaced it
+                    if (results != null) {
+                        mLayers.setSearchResults(mKey, results);
+                        if (mKey.equals(mSearchLayerKey)) {
+                            mSearchResults = results;
+                        }
+                    }
+
+                    if (failed_sub_queries > 0) {
+                        Toast.makeText(MapsActivity.this, R.string.search_terms_failed,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Method to show the incidents within NEARBY_RADIUS_METERS of the given point
+     * @param center LatLng of the center of the search
+     */
+    private void startNearbySearch(LatLng center) {
+
         // searching is initiated
         mSearchInProgress = true;
 
-        // set the activity title to reflect the new search term
-        String search_feedback = String.format(getString(R.string.search_feedback), s);
+        // set the activity title to reflect the radius search
+        String search_feedback = String.format(getString(R.string.nearby_feedback),
+                NEARBY_RADIUS_METERS);
         getSupportActionBar().setTitle(search_feedback);
 
-        // initiate the database query with the string s
-        retrieveSearchFileFromUrl(s);
+        // drop the results still to come from the last search, so they don't land on this one
+        if (mSearch != null) {
+            mSearch.cancel();
+            mSearch = null;
+        }
+
+        // take the last data off the map
+        mLayers.hideAll();
 
-        // clear the last data from the map
-        mMap.clear();
+        mSearchLayerKey = String.format(Locale.US, "nearby:%.5f,%.5f",
+                center.latitude, center.longitude);
+
+        SoqlQuery query = IncidentQueries.nearby(mQueryDate, center.latitude, center.longitude,
+                NEARBY_RADIUS_METERS);
+
+        // the index answers when its snapshot can, and is the fallback otherwise
+        if (mIndex != null && mIndex.getSnapshot() == mSnapshot && isAnsweredLocally(query)) {
+            new QueryNearby(mSearchLayerKey, mIndex, center).execute();
+        } else {
+            new QueryNearby(mSearchLayerKey, mIndex, center).execute(query.toUrl());
+        }
     }
 
 
@@ -388,6 +674,14 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
     public void onMapReady(GoogleMap googleMap) {
         mMap = googleMap;
 
+        // a long press searches for incidents around the pressed point
+        mMap.setOnMapLongClickListener(new GoogleMap.OnMapLongClickListener() {
+            @Override
+            public void onMapLongClick(LatLng latLng) {
+                startNearbySearch(latLng);
+            }
+        });
+
         // restore the previously retrieved district map results
         if(!mDistrictResults.isEmpty() && !mSearchInProgress){
             restoreDistrictMap();
@@ -420,11 +714,13 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
 
 
     /**
-     * Method to return previously saved results to the map,
-     * clearing the map of any previous data
+     * Method to return the district layer to the map in place of any other layer,
+     * rebuilding it from the saved results if it is not kept
      */
     private void restoreDistrictMap() {
-        mMap.clear();
+        if (mLayers.showDistrictLayer()) {
+            return;
+        }
 
         try {
             addGeoJsonLayerToDistrictMap(new GeoJsonLayer(mMap, new JSONObject(mDistrictResults)));
@@ -434,113 +730,160 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
     }
 
     /**
-     * Method to return previously saved results to the map,
-     * clearing the map of any previous data
+     * Method to return the search layer to the map in place of any other layer,
+     * rebuilding it from the saved results if it is not kept
      */
     private void restoreSearchMap() {
-        mMap.clear();
+        if (mLayers.showSearchLayer(mSearchLayerKey)) {
+            return;
+        }
 
         try {
-            addGeoJsonSearchLayerToMap(new GeoJsonLayer(mMap, new JSONObject(mSearchResults)));
+            addGeoJsonSearchLayerToMap(new GeoJsonLayer(mMap, new JSONObject(mSearchResults)),
+                    mSearchLayerKey);
+            mLayers.setSearchResults(mSearchLayerKey, mSearchResults);
         } catch (JSONException e) {
             Log.e(TAG, "GeoJSON file could not be converted to a JSONObject");
         }
     }
 
     /**
-     * Method to construct the initial query for the police district data.
-     * The query form exists in the string resource, SFPD_Incidents_request, but
-     * must include a string representing the query date of form SFPD_Incidents_query_date_format.
-     *
-     * To ensure descending order of the query results the query must have the string resource DESC
-     * appended to it.
-     *
-     * The fully constructed query is then passed to the asyncTask for execution.
+     * Method to install a response cache for every HttpURLConnection of the app, once
      */
-    private void retrievePoliceDistrictFileFromUrl() {
+    private void installHttpCache() {
+        if (HttpResponseCache.getInstalled() != null) {
+            return;
+        }
 
-        String query_date_format = getString(R.string.SFPD_Incidents_query_date_format);
+        try {
+            HttpResponseCache.install(new File(getCacheDir(), "http"), HTTP_CACHE_BYTES);
+        } catch (IOException e) {
+            Log.e(TAG, "HTTP response cache could not be installed");
+        }
+    }
 
-        String decs = getString(R.string.DESC);
+    /**
+     * Method to map the locally saved incident snapshot, if there is one
+     */
+    private void openSnapshot() {
+        File file = new File(getFilesDir(), SNAPSHOT_FILE);
 
-        String query_string = String.format(getString(R.string.SFPD_Incidents_request),
-                getDateString(mQueryDate, query_date_format));
+        if (file.exists()) {
+            try {
+                mSnapshot = IncidentSnapshot.open(file);
+                new BuildGridIndex().execute(mSnapshot);
+            } catch (IOException e) {
+                Log.e(TAG, "Incident snapshot could not be opened");
+            }
+        }
+    }
 
-        new DownloadGeoJsonFile().execute(query_string+decs);
+    /**
+     * @return true if there is a snapshot younger than SNAPSHOT_MAX_AGE_MS
+     */
+    private boolean isSnapshotFresh() {
+        return mSnapshot != null &&
+                System.currentTimeMillis() - mSnapshot.getCreatedAt() < SNAPSHOT_MAX_AGE_MS;
     }
 
+    /**
+     * @return ms since epoc, midnight NUMBER_QUERY_MONTHS months ago, the start of the query window
+     */
+    static long queryWindowStart() {
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.MONTH, NUMBER_QUERY_MONTHS);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTimeInMillis();
+    }
 
     /**
-     * Method to construct the query for the search term.
-     * The query form exists in the string resource, SFPD_Incidents_search_term_request,
-     * including the given search term.
+     * Method to construct the initial query for the police district data, from the query date.
      *
-     * The fully constructed query is then passed to the asyncTask for execution.
-     * @param search_term String of the search term to include in the database request.
+     * The query URL is then passed to the asyncTask for execution.
+     *
+     * When the local snapshot can answer the query, the query is answered from it instead.
+     * Otherwise the snapshot is downloaded after the district query, for the next launch.
      */
-    private void retrieveSearchFileFromUrl(String search_term) {
+    private void retrievePoliceDistrictFileFromUrl() {
 
-        String query_date_format = getString(R.string.SFPD_Incidents_query_date_format);
+        SoqlQuery query = IncidentQueries.districtCounts(mQueryDate);
 
-        String query_string = String.format(
-                getString(R.string.SFPD_Incidents_search_term_request),
-                search_term,
-                getDateString(mQueryDate, query_date_format));
+        if (isAnsweredLocally(query)) {
+            new QuerySnapshot().execute();
+            return;
+        }
 
-        new DownloadGeoJsonFile().execute(query_string);
-    }
+        new DownloadGeoJsonFile(null).execute(query.toUrl());
 
+        retrieveSnapshotFileFromUrl();
+    }
 
     /**
-     * AsyncTask task for sending out the query and processing the results.
+     * The district, search and nearby queries all go through here, so that the snapshot
+     * answers all of them or none.
+     *
+     * @return true if the query is of a shape the snapshot can answer, and the snapshot is
+     * fresh and holds the whole window of the query
      */
-    private class DownloadGeoJsonFile extends AsyncTask<String, Void, GeoJsonLayer> {
+    private boolean isAnsweredLocally(SoqlQuery query) {
+        return IncidentQueries.SNAPSHOT_SHAPES.contains(query.getShape()) &&
+                isSnapshotFresh() && mSnapshot.covers(query.getWindowStart());
+    }
 
-        @Override
-        protected GeoJsonLayer doInBackground(String... params) {
+    /**
+     * Method to bring the incident snapshot up to date, for when the background sync has not.
+     * The pages are queried by IncidentQueries.snapshotPage, in plain JSON.
+     *
+     * The sync is then passed to the asyncTask for execution.  It downloads many pages, so it
+     * runs on the thread pool rather than holding up the other tasks on the serial executor,
+     * such as the nearby search.  IncidentSync runs one sync at a time by itself.
+     */
+    private void retrieveSnapshotFileFromUrl() {
+        new DownloadIncidentSnapshot().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
 
-            try {
-                // Open a stream from the URL
-                InputStream stream = new URL(params[0]).openStream();
 
-                String line;
-                StringBuilder result = new StringBuilder();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+    /**
+     * AsyncTask task for sending out the query and processing the results.
+     *
+     * If the district query fails, the last results or the snapshot are used in its place.
+     */
+    private class DownloadGeoJsonFile extends AsyncTask<String, Void, GeoJsonLayer> {
 
-                while ((line = reader.readLine()) != null) {
-                    // Read and save each line of the stream
-                    result.append(line);
-                }
+        // key of the search layer the results are for, null for the district results
+        protected final String mLayerKey;
 
-                // Close the stream
-                reader.close();
-                stream.close();
+        // true when the layer was built from cached data after the query failed
+        protected boolean mIsCachedResult = false;
 
-                String search_result = result.toString();
+        // geoJSON the layer was built from, saved on the UI thread
+        private String mResult;
 
-                // Save the result for later restoration
-                if(mSearchInProgress) {
+        DownloadGeoJsonFile(String layer_key){
+            mLayerKey = layer_key;
+        }
 
-                    mSearchResults = search_result;
-                }else {
-                    mDistrictResults = search_result;
-                }
+        @Override
+        protected GeoJsonLayer doInBackground(String... params) {
 
-                // create the JSON object for the results
-                JSONObject temp = new JSONObject(search_result);
+            try {
+                byte[] result = sFetcher.fetch(params[0]);
 
-                // save the sorted order of the geo objects
-                savePointOrder(temp);
+                Log.d(TAG, "data.sfgov.org latency " + sFetcher.getLatencyTracker());
 
-                // create the geographic layer that holds the response data
-                return new GeoJsonLayer(mMap,temp);
+                return toLayer(new String(result, "UTF-8"));
 
             } catch (IOException e) {
 
-                Log.e(TAG, "GeoJSON file could not be read");
+                Log.e(TAG, "GeoJSON file could not be read", e);
 
                 mIsFileParsingError = false;
 
+                return mLayerKey == null ? cachedDistrictLayer() : null;
+
             } catch (JSONException e) {
                 Log.e(TAG, "GeoJSON file could not be converted to a JSONObject");
 
@@ -549,14 +892,84 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
             return null;
         }
 
+        /**
+         * Build the district layer from previously retrieved data, for when the endpoint is
+         * unavailable
+         *
+         * @return GeoJsonLayer, or null if there is nothing cached
+         */
+        protected GeoJsonLayer cachedDistrictLayer() {
+
+            try {
+                if (!mDistrictResults.isEmpty()) {
+                    mIsCachedResult = true;
+                    return toLayer(mDistrictResults);
+                }
+
+                if (mSnapshot != null) {
+                    mIsCachedResult = true;
+                    return toLayer(snapshotDistrictResult(mSnapshot).toString());
+                }
+
+            } catch (JSONException e) {
+                Log.e(TAG, "Cached results could not be converted to a JSONObject");
+            }
+            return null;
+        }
+
+        /**
+         * Answer the district query from the snapshot
+         */
+        protected JSONObject snapshotDistrictResult(IncidentSnapshot snapshot)
+                throws JSONException {
+            return IncidentGeoJson.districtCollection(snapshot.districtSummaries(mQueryDate));
+        }
+
+        /**
+         * Keep the geoJSON result for later restoration and make it into a map layer
+         */
+        protected GeoJsonLayer toLayer(String search_result) throws JSONException {
+
+            // saved once the layer is handed to the UI thread
+            mResult = search_result;
+
+            // create the JSON object for the results
+            JSONObject temp = new JSONObject(search_result);
+
+            // save the sorted order of the geo objects
+            savePointOrder(temp);
+
+            // create the geographic layer that holds the response data
+            return new GeoJsonLayer(mMap,temp);
+        }
+
         @Override
         protected void onPostExecute(GeoJsonLayer layer) {
             if (layer != null) {
 
-                if(mSearchInProgress){
-                    addGeoJsonSearchLayerToMap(layer);
-                }else {
-                    addGeoJsonLayerToDistrictMap(layer);
+                // Save the result for later restoration, unless a newer search replaced it
+                if (mLayerKey == null) {
+                    mDistrictResults = mResult;
+                } else if (mLayerKey.equals(mSearchLayerKey)) {
+                    mSearchResults = mResult;
+                }
+
+                if (mIsCachedResult) {
+                    Toast.makeText(MapsActivity.this, R.string.cached_data_notice,
+                            Toast.LENGTH_SHORT).show();
+                }
+
+                // styling the parsed layer and putting it on the map
+                mFrameMonitor.begin(FrameMetricsMonitor.OP_PARSE_HAND_OFF);
+                try {
+                    if (mLayerKey != null) {
+                        addGeoJsonSearchLayerToMap(layer, mLayerKey);
+                        mLayers.setSearchResults(mLayerKey, mResult);
+                    } else {
+                        addGeoJsonLayerToDistrictMap(layer);
+                    }
+                } finally {
+                    mFrameMonitor.end(FrameMetricsMonitor.OP_PARSE_HAND_OFF);
                 }
             }else {
 
@@ -569,34 +982,204 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
     }
 
     /**
-     * Since the request from the end point is already sorted in descending order and
-     * adding the geoJSON data to the map layers destroys the order...
+     * AsyncTask answering the district query from the local snapshot.  The results are built in
+     * the same geoJSON form as the data.sfgov.org response and handled exactly as
+     * DownloadGeoJsonFile handles them.
+     */
+    private class QuerySnapshot extends DownloadGeoJsonFile {
+
+        QuerySnapshot(){
+            super(null);
+        }
+
+        @Override
+        protected GeoJsonLayer doInBackground(String... params) {
+
+            try {
+                // use the results pre-computed by the sync when they are for this snapshot
+                String aggregate = IncidentSync.readDistrictAggregate(
+                        new File(getFilesDir(), DISTRICT_AGGREGATE_FILE), mSnapshot, mQueryDate);
+                if (aggregate != null) {
+                    return toLayer(aggregate);
+                }
+
+                return toLayer(snapshotDistrictResult(mSnapshot).toString());
+
+            } catch (JSONException e) {
+                Log.e(TAG, "Snapshot results could not be converted to a JSONObject");
+
+                mIsFileParsingError = true;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * AsyncTask downloading the incidents of the query window missing from the local snapshot
+     * and saving them into it, as the background sync would.
+     */
+    private class DownloadIncidentSnapshot extends AsyncTask<Void, Void, IncidentSnapshot> {
+
+        @Override
+        protected IncidentSnapshot doInBackground(Void... params) {
+
+            try {
+                IncidentSyncService.syncNow(MapsActivity.this, sSyncFetcher, mQueryDate);
+
+                return IncidentSnapshot.open(new File(getFilesDir(), SNAPSHOT_FILE));
+
+            } catch (IOException e) {
+                Log.e(TAG, "Incident snapshot could not be downloaded");
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(IncidentSnapshot snapshot) {
+            if (snapshot != null) {
+                mSnapshot = snapshot;
+                new BuildGridIndex().execute(snapshot);
+                prefetchDistrictBreakdowns();
+            }
+        }
+    }
+
+    /**
+     * Start computing the district breakdowns, unless they are already computed from the
+     * current snapshot
+     */
+    private void prefetchDistrictBreakdowns() {
+        if (mSnapshot != null && mSnapshot != mBreakdownSnapshot) {
+            mBreakdownSnapshot = mSnapshot;
+            new ComputeDistrictBreakdowns().execute(mSnapshot);
+        }
+    }
+
+    /**
+     * AsyncTask computing the breakdown of every district from the snapshot, in a single pass
+     */
+    private class ComputeDistrictBreakdowns
+            extends AsyncTask<IncidentSnapshot, Void, HashMap<String, DistrictBreakdown>> {
+
+        @Override
+        protected HashMap<String, DistrictBreakdown> doInBackground(IncidentSnapshot... params) {
+            return DistrictBreakdown.compute(params[0], mQueryDate, TimeZone.getDefault());
+        }
+
+        @Override
+        protected void onPostExecute(HashMap<String, DistrictBreakdown> breakdowns) {
+            mBreakdowns = breakdowns;
+        }
+    }
+
+    /**
+     * AsyncTask bucketing the snapshot rows into the grid used by the radius search
+     */
+    private class BuildGridIndex extends AsyncTask<IncidentSnapshot, Void, IncidentGridIndex> {
+
+        @Override
+        protected IncidentGridIndex doInBackground(IncidentSnapshot... params) {
+            try {
+                return IncidentGridIndex.build(params[0]);
+            } catch (IllegalArgumentException e) {
+                // nearby search stays unavailable
+                Log.e(TAG, "Incident snapshot could not be indexed", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(IncidentGridIndex index) {
+            // ignore an index of a snapshot that has since been replaced
+            if (index != null && index.getSnapshot() == mSnapshot) {
+                mIndex = index;
+            }
+        }
+    }
+
+    /**
+     * AsyncTask answering a radius search from the grid index.  The incidents found are built
+     * into the same geoJSON form as the search results and shown with the search markers.
      *
-     * Here we record the order of the request results for later reference.
+     * When given the URL of an IncidentQueries.nearby query, data.sfgov.org is asked first, and
+     * the grid index, if there is one, only answers when that fails.
      */
-    private void savePointOrder(JSONObject thing) {
+    private class QueryNearby extends DownloadGeoJsonFile {
 
-        String count;
+        private final IncidentGridIndex mQueryIndex;
+        private final LatLng mCenter;
 
-        JSONObject item;
-        JSONArray list;
-        int list_size;
+        QueryNearby(String layer_key, IncidentGridIndex index, LatLng center){
+            super(layer_key);
+            mQueryIndex = index;
+            mCenter = center;
+        }
 
-        try {
-            list = thing.getJSONArray("features");
-            list_size = list.length();
+        @Override
+        protected GeoJsonLayer doInBackground(String... params) {
 
-            for(int i = 0; i <list_size; i++){
+            try {
+                if (params.length > 0) {
+                    try {
+                        return toLayer(withinRadius(sFetcher.fetch(params[0])).toString());
+
+                    } catch (IOException e) {
+                        Log.e(TAG, "Nearby incidents could not be downloaded", e);
+
+                        mIsFileParsingError = false;
+                        if (mQueryIndex == null) {
+                            return null;
+                        }
+                        mIsCachedResult = true;
+                    }
+                }
 
-                item = (JSONObject)list.get(i);
+                IncidentGeoJson.FeatureCollector collector =
+                        new IncidentGeoJson.FeatureCollector(mQueryIndex.getSnapshot());
 
-                Log.d(TAG, item.toString());
+                mQueryIndex.within(mCenter.latitude, mCenter.longitude, NEARBY_RADIUS_METERS,
+                        mQueryDate, collector);
 
-                item = item.getJSONObject("properties");
-                count = item.getString("count");
+                return toLayer(collector.getCollection().toString());
+
+            } catch (JSONException e) {
+                Log.e(TAG, "Nearby results could not be converted to a JSONObject");
 
-                mPointOrder.put(count, String.format("%d", i+1));
+                mIsFileParsingError = true;
+            }
+            return null;
+        }
+
+        /**
+         * @return the incidents of the response inside the radius, dropping the corners of the
+         * queried box
+         */
+        private JSONObject withinRadius(byte[] response) throws JSONException, IOException {
+            JSONArray features = new JSONArray();
+            for (JSONObject feature : MarkerPipeline.features(MarkerPipeline.parse(response))) {
+                JSONArray coordinates = feature.getJSONObject("geometry")
+                        .getJSONArray("coordinates");
+                if (IncidentGridIndex.distanceMeters(mCenter.latitude, mCenter.longitude,
+                        coordinates.getDouble(1), coordinates.getDouble(0))
+                        <= NEARBY_RADIUS_METERS) {
+                    features.put(feature);
+                }
             }
+            return IncidentGeoJson.collection(features);
+        }
+    }
+
+    /**
+     * Since the request from the end point is already sorted in descending order and
+     * adding the geoJSON data to the map layers destroys the order...
+     *
+     * Here we record the order of the request results for later reference, as ranked by
+     * MarkerPipeline.
+     */
+    private void savePointOrder(JSONObject thing) {
+
+        try {
+            mPointOrder.putAll(MarkerPipeline.rankByCount(thing));
 
         } catch (JSONException e) {
             e.printStackTrace();
@@ -606,21 +1189,28 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
 
     /**
      * Add layers to the district map, after modifying the markers, and setting the action to
-     * perform when clicking on the marker.
+     * perform when clicking on the marker.  The layer is kept by mLayers, and only put on the map
+     * if no search is being shown.
      *
      * @param layer GeoJsonLayer
      */
     private void addGeoJsonLayerToDistrictMap(GeoJsonLayer layer) {
 
         modifyDistrictMapMarkers(layer);
-        layer.addLayerToMap();
 
         // Demonstrate receiving features via GeoJsonLayer clicks.
-        layer.setOnFeatureClickListener(new GeoJsonLayer.GeoJsonOnFeatureClickListener() {
+        mLayers.setDistrictLayer(layer, new GeoJsonLayer.GeoJsonOnFeatureClickListener() {
             @Override
             public void onFeatureClick(GeoJsonFeature feature) {
 
-                // display the number of incidents in a toast
+                // show the prefetched breakdown of the district if there is one
+                DistrictBreakdown breakdown = mBreakdowns.get(feature.getProperty("pddistrict"));
+                if (breakdown != null) {
+                    showDistrictBreakdown(breakdown);
+                    return;
+                }
+
+                // otherwise display the number of incidents in a toast
                 Toast.makeText(MapsActivity.this,
                         String.format(getString(R.string.number_of_incidents),
                                 feature.getProperty("count")),
@@ -628,20 +1218,75 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
             }
         });
 
+        if (!mSearchInProgress) {
+            mLayers.showDistrictLayer();
+        }
+
+        prefetchDistrictBreakdowns();
+    }
+
+
+    /**
+     * Show the top categories, the hourly distribution and the trend of a district in a dialog
+     * @param breakdown DistrictBreakdown
+     */
+    private void showDistrictBreakdown(DistrictBreakdown breakdown) {
+
+        StringBuilder message = new StringBuilder();
+        message.append(String.format(getString(R.string.number_of_incidents),
+                breakdown.getTotal()));
+
+        message.append("\n\n").append(getString(R.string.breakdown_top_categories));
+        for (DistrictBreakdown.CategoryCount category : breakdown.getTopCategories()) {
+            message.append("\n").append(String.format(getString(R.string.breakdown_category),
+                    category.category, category.count));
+        }
+
+        message.append("\n\n").append(String.format(getString(R.string.breakdown_hourly),
+                hourlyBars(breakdown.getHourly())));
+        message.append("\n").append(String.format(getString(R.string.breakdown_busiest_hour),
+                breakdown.getBusiestHour()));
+        message.append("\n").append(String.format(getString(R.string.breakdown_trend),
+                breakdown.getTrendPercent()));
+
+        new AlertDialog.Builder(this)
+                .setTitle(breakdown.getDistrict())
+                .setMessage(message)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    /**
+     * Draw the hourly counts as a row of bar characters, one per hour from midnight
+     */
+    private static String hourlyBars(int[] hourly) {
+        final String bars = "\u2581\u2582\u2583\u2584\u2585\u2586\u2587\u2588";
+
+        int max = 1;
+        for (int count : hourly) {
+            max = Math.max(max, count);
+        }
+
+        StringBuilder line = new StringBuilder(hourly.length);
+        for (int count : hourly) {
+            line.append(bars.charAt(count * (bars.length() - 1) / max));
+        }
+        return line.toString();
     }
 
 
     /**
      * Add layers to the search query map, setting the action to perform when clicking on the markers.
+     * The layer is kept by mLayers, and only put on the map if it is still the search being shown.
      * @param layer
+     * @param key String, key of the search the layer holds the results for
      */
-    private void addGeoJsonSearchLayerToMap(GeoJsonLayer layer) {
+    private void addGeoJsonSearchLayerToMap(GeoJsonLayer layer, String key) {
 
         modifySearchMapMarkers(layer);
-        layer.addLayerToMap();
 
         // Demonstrate receiving features via GeoJsonLayer clicks.
-        layer.setOnFeatureClickListener(new GeoJsonLayer.GeoJsonOnFeatureClickListener() {
+        mLayers.putSearchLayer(key, layer, new GeoJsonLayer.GeoJsonOnFeatureClickListener() {
             @Override
             public void onFeatureClick(GeoJsonFeature feature) {
 
@@ -653,6 +1298,9 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
             }
         });
 
+        if (mSearchInProgress && key.equals(mSearchLayerKey)) {
+            mLayers.showSearchLayer(key);
+        }
     }
 
 
@@ -664,38 +1312,34 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
      */
     private void modifyDistrictMapMarkers(GeoJsonLayer layer) {
 
-        int order_index;
-        String count;
+        MarkerPipeline.Marker marker;
         GeoJsonPoint point;
 
 
         // Iterate over all the features stored in the layer
         for (GeoJsonFeature feature : layer.getFeatures()) {
-            // Check if the magnitude property exists
-            if (feature.getProperty("count") != null &&
-                    feature.getProperty("avg_x") != null &&
-                    feature.getProperty("count") != null) {
 
-                // modify each geographic feature have a point with the given average coordinates
-                point = new GeoJsonPoint(new LatLng(Float.parseFloat(feature.getProperty("avg_y")),
-                        Float.parseFloat(feature.getProperty("avg_x"))));
-                feature.setGeometry(point);
+            // position, color and label of the marker, null if a property is missing
+            marker = MarkerPipeline.districtMarker(feature.getProperty("count"),
+                    feature.getProperty("avg_x"), feature.getProperty("avg_y"), mPointOrder);
 
+            if (marker != null) {
 
-                // based on the incident count, get the order index for the entry
-                count = feature.getProperty("count");
-                order_index = Integer.parseInt(mPointOrder.get(count));
+                // modify each geographic feature have a point with the given average coordinates
+                point = new GeoJsonPoint(new LatLng(marker.lat, marker.lon));
+                feature.setGeometry(point);
 
                 // Get the icon for the feature, using the prescribed color based on order
                 BitmapDescriptor pointIcon =
-                        BitmapDescriptorFactory.defaultMarker(colorByOrder(order_index));
+                        BitmapDescriptorFactory.defaultMarker(colorByOrder(marker.color_slot));
 
                 // Create a new point style
                 GeoJsonPointStyle pointStyle = new GeoJsonPointStyle();
 
                 // Set options for the point style
                 pointStyle.setIcon(pointIcon);
-                pointStyle.setTitle(String.format(getString(R.string.incident_count), count));
+                pointStyle.setTitle(String.format(getString(R.string.incident_count),
+                        marker.label));
 
                 // Assign the point style to the feature
                 feature.setPointStyle(pointStyle);
@@ -710,19 +1354,31 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
      */
     private void modifySearchMapMarkers(GeoJsonLayer layer) {
 
+        MarkerPipeline.Marker marker;
+        LatLng position;
+
         // Iterate over all the features stored in the layer
         for (GeoJsonFeature feature : layer.getFeatures()) {
 
+            if (!(feature.getGeometry() instanceof GeoJsonPoint)) {
+                continue;
+            }
+
+            // position, color and label of the marker
+            position = ((GeoJsonPoint) feature.getGeometry()).getCoordinates();
+            marker = MarkerPipeline.searchMarker(position.latitude, position.longitude,
+                    feature.getProperty("descript"));
 
             // Get the icon for the feature, using the a bold color
-            BitmapDescriptor pointIcon = BitmapDescriptorFactory.defaultMarker(colorByOrder(1));
+            BitmapDescriptor pointIcon =
+                    BitmapDescriptorFactory.defaultMarker(colorByOrder(marker.color_slot));
 
             // Create a new point style
             GeoJsonPointStyle pointStyle = new GeoJsonPointStyle();
 
             // Set options for the point style
             pointStyle.setIcon(pointIcon);
-            pointStyle.setTitle(feature.getProperty("descript"));
+            pointStyle.setTitle(marker.label);
 
             // Assign the point style to the feature
             feature.setPointStyle(pointStyle);
@@ -733,6 +1389,7 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
 
     /**
      * Assigns color based on crime stats, also converting our color resources into hue values.
+     * @param index color slot of MarkerPipeline, from 1 to COLOR_SLOTS
      */
     private float colorByOrder(int index) {
         float[] hsv = new float[3];
@@ -766,31 +1423,6 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
         return hsv[0];
     }
 
-    /**
-     * Returns date string based on the number of ms since epoc
-     * Support for the getCountDown_Days method, made public for testing
-     *
-     * @param ms_since_epoc,  timestamp, number ms since epoc
-     * @param out_date_format String, format for the timeString
-     * @return String, string representation of the date
-     */
-    public static String getDateString(Long ms_since_epoc, final String out_date_format) {
-
-        final SimpleDateFormat dateFormat = new SimpleDateFormat(out_date_format, Locale.US);
-        //dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-
-        String out_date = "";
-        try {
-            Date date = new Date(ms_since_epoc);
-
-            out_date = dateFormat.format(date);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        return out_date;
-    }
-
     @SuppressWarnings("deprecation")
     private int chooseColor(int resource) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
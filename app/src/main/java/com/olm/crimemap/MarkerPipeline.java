@@ -0,0 +1,155 @@
+package com.olm.crimemap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The steps from a data.sfgov.org response to styled map markers that need no Android classes:
+ * parsing the geoJSON, ranking the districts by the order of the response, and choosing the
+ * position, color and label of each marker.
+ *
+ * MapsActivity applies the results to its GeoJsonLayer features, and the same steps are run on
+ * the JVM by the pipeline performance tests.
+ */
+
+public class MarkerPipeline {
+
+    // number of marker colors, the last being used for every district after the first few
+    static final int COLOR_SLOTS = 8;
+
+    // color of every search marker, the boldest
+    static final int SEARCH_COLOR_SLOT = 1;
+
+
+    /**
+     * Position, color and label of a marker
+     */
+    public static class Marker {
+        public final double lat;
+        public final double lon;
+        public final int color_slot;
+        public final String label;
+
+        Marker(double lat, double lon, int color_slot, String label){
+            this.lat = lat;
+            this.lon = lon;
+            this.color_slot = color_slot;
+            this.label = label;
+        }
+    }
+
+
+    /**
+     * @param response geoJSON response body
+     * @return the feature collection
+     */
+    public static JSONObject parse(byte[] response)
+            throws JSONException, UnsupportedEncodingException {
+        return new JSONObject(new String(response, "UTF-8"));
+    }
+
+    /**
+     * @return the features of a collection, in the order of the response
+     */
+    public static List<JSONObject> features(JSONObject collection) throws JSONException {
+        JSONArray list = collection.getJSONArray("features");
+
+        List<JSONObject> features = new ArrayList<>(list.length());
+        for (int i = 0; i < list.length(); i++) {
+            features.add(list.getJSONObject(i));
+        }
+        return features;
+    }
+
+    /**
+     * The district response is sorted by descending incident count, an order which the map
+     * layers lose.  Record the order, from 1, of each count.
+     *
+     * @return order of each incident count, both as Strings, as kept in the saved state
+     */
+    public static HashMap<String, String> rankByCount(JSONObject collection) throws JSONException {
+        HashMap<String, String> point_order = new HashMap<>();
+
+        JSONArray list = collection.getJSONArray("features");
+        for (int i = 0; i < list.length(); i++) {
+            String count = list.getJSONObject(i).getJSONObject("properties").getString("count");
+            point_order.put(count, String.format(Locale.US, "%d", i + 1));
+        }
+        return point_order;
+    }
+
+    /**
+     * Marker of a district, at the average position of its incidents and colored by its order
+     *
+     * @param count incident count property
+     * @param avg_x average longitude property
+     * @param avg_y average latitude property
+     * @param point_order order of each count, from rankByCount
+     * @return the Marker, labelled with the count, or null if a property is missing
+     */
+    public static Marker districtMarker(String count, String avg_x, String avg_y,
+                                        Map<String, String> point_order) {
+        if (count == null || avg_x == null || avg_y == null) {
+            return null;
+        }
+
+        String order = point_order.get(count);
+        int order_index = order == null ? COLOR_SLOTS : Integer.parseInt(order);
+
+        return new Marker(Float.parseFloat(avg_y), Float.parseFloat(avg_x),
+                colorSlot(order_index), count);
+    }
+
+    /**
+     * Markers of every district of a response
+     */
+    public static List<Marker> districtMarkers(JSONObject collection,
+                                               Map<String, String> point_order)
+            throws JSONException {
+        List<Marker> markers = new ArrayList<>();
+        for (JSONObject feature : features(collection)) {
+            JSONObject properties = feature.getJSONObject("properties");
+            Marker marker = districtMarker(properties.optString("count", null),
+                    properties.optString("avg_x", null), properties.optString("avg_y", null),
+                    point_order);
+            if (marker != null) {
+                markers.add(marker);
+            }
+        }
+        return markers;
+    }
+
+    /**
+     * Marker of a search result, at its own point and labelled with its description
+     */
+    public static Marker searchMarker(JSONObject feature) throws JSONException {
+        JSONArray coordinates = feature.getJSONObject("geometry").getJSONArray("coordinates");
+        return searchMarker(coordinates.getDouble(1), coordinates.getDouble(0),
+                feature.getJSONObject("properties").optString("descript"));
+    }
+
+    /**
+     * Marker of a search result already parsed into a map feature
+     *
+     * @param descript description property, or null
+     */
+    public static Marker searchMarker(double lat, double lon, String descript) {
+        return new Marker(lat, lon, SEARCH_COLOR_SLOT, descript == null ? "" : descript);
+    }
+
+    /**
+     * @param order_index order of a district, from 1
+     * @return the color of the marker, from 1 for the most incidents to COLOR_SLOTS
+     */
+    public static int colorSlot(int order_index) {
+        return order_index >= 1 && order_index < COLOR_SLOTS ? order_index : COLOR_SLOTS;
+    }
+}
@@ -0,0 +1,58 @@
+package com.olm.crimemap;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Answers search sub-queries with a data.sfgov.org request through the ResilientFetcher.
+ * The query is built by IncidentQueries.search: the filters of the request become the $where
+ * clause, and the term the $q full text search.
+ *
+ * If the request fails, the sub-query is answered by the fallback source, when there is one.
+ */
+
+public class NetworkSearchSource implements SearchEngine.Source {
+
+    private final ResilientFetcher mFetcher;
+    private final SearchEngine.Source mFallback;
+    private final String mDataset;
+
+
+    /**
+     * @param fetcher ResilientFetcher
+     * @param fallback Source used when the request fails, or null
+     */
+    public NetworkSearchSource(ResilientFetcher fetcher, SearchEngine.Source fallback){
+        this(fetcher, fallback, IncidentQueries.DATASET);
+    }
+
+    /**
+     * @param dataset URL of the dataset resource, such as that of a local stand-in
+     */
+    NetworkSearchSource(ResilientFetcher fetcher, SearchEngine.Source fallback, String dataset){
+        mFetcher = fetcher;
+        mFallback = fallback;
+        mDataset = dataset;
+    }
+
+
+    @Override
+    public List<JSONObject> search(String term, SearchRequest request) throws Exception {
+
+        byte[] result;
+        try {
+            result = mFetcher.fetch(IncidentQueries.search(mDataset, request, term).toUrl());
+
+        } catch (IOException e) {
+            if (mFallback == null) {
+                throw e;
+            }
+            return mFallback.search(term, request);
+        }
+
+        return MarkerPipeline.features(MarkerPipeline.parse(result));
+    }
+
+}
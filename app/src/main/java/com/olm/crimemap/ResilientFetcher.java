@@ -0,0 +1,357 @@
+package com.olm.crimemap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches data.sfgov.org responses while guarding against the slow tail of its latency.
+ *
+ *  - Timeouts adapt to the observed latency: a multiple of the p99, within fixed limits.
+ *  - If a request has not answered by the p95, a second, hedged request is sent and whichever
+ *    answers first is used.
+ *  - Failed attempts are retried after a randomly jittered, exponentially growing backoff.
+ *    Client errors, HTTP 4xx other than 408 and 429, are not retried.
+ *  - Repeated failures open a CircuitBreaker, after which requests fail immediately with
+ *    CircuitOpenException so that the caller can fall back to cached data.  Client errors and
+ *    attempts abandoned because the caller was interrupted are not endpoint failures.
+ *  - An attempt that times out is recorded as a latency of the time it was given, so that the
+ *    timeout grows while the endpoint is slow instead of staying at its minimum.
+ *
+ * Until MIN_SAMPLES latencies are known, the default timeout is used and no hedging is done.
+ */
+
+public class ResilientFetcher {
+
+    private static final int MIN_SAMPLES = 5;
+    private static final long DEFAULT_TIMEOUT_MS = 15 * 1000;
+    private static final long MIN_TIMEOUT_MS = 2 * 1000;
+    private static final long MAX_TIMEOUT_MS = 30 * 1000;
+    private static final int TIMEOUT_P99_MULTIPLE = 4;
+    private static final long MIN_HEDGE_DELAY_MS = 10;
+
+    static final int DEFAULT_MAX_ATTEMPTS = 3;
+    static final long DEFAULT_BACKOFF_MS = 250;
+
+
+    /**
+     * Thrown when the circuit is open and no request was sent
+     */
+    public static class CircuitOpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CircuitOpenException(){
+            super("data.sfgov.org circuit is open");
+        }
+    }
+
+    /**
+     * Thrown when the endpoint answers with an unsuccessful HTTP status
+     */
+    public static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int mCode;
+
+        public HttpStatusException(int code, String url){
+            super("HTTP " + code + " from " + url);
+            mCode = code;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        /**
+         * @return true for a 4xx error caused by the request, which would fail again.
+         * Request timeouts and rate limiting are worth a retry.
+         */
+        public boolean isClientError() {
+            return mCode >= 400 && mCode < 500 && mCode != 408 && mCode != 429;
+        }
+    }
+
+
+    private final LatencyTracker mLatencyTracker;
+    private final CircuitBreaker mCircuitBreaker;
+    private final int mMaxAttempts;
+    private final long mBackoffMs;
+    private final boolean mHedging;
+
+    private final ExecutorService mExecutor;
+    private final Random mRandom = new Random();
+
+    private final AtomicInteger mHedgeCount = new AtomicInteger();
+
+
+    public ResilientFetcher(){
+        this(new LatencyTracker(), new CircuitBreaker(), DEFAULT_MAX_ATTEMPTS, DEFAULT_BACKOFF_MS);
+    }
+
+    public ResilientFetcher(LatencyTracker latency_tracker, CircuitBreaker circuit_breaker,
+                            int max_attempts, long backoff_ms){
+        this(latency_tracker, circuit_breaker, max_attempts, backoff_ms, true);
+    }
+
+    /**
+     * @param hedging false to never send hedged requests, such as when measuring one request
+     */
+    public ResilientFetcher(LatencyTracker latency_tracker, CircuitBreaker circuit_breaker,
+                            int max_attempts, long backoff_ms, boolean hedging){
+        mLatencyTracker = latency_tracker;
+        mCircuitBreaker = circuit_breaker;
+        mMaxAttempts = max_attempts;
+        mBackoffMs = backoff_ms;
+        mHedging = hedging;
+
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ResilientFetcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    public LatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    /**
+     * @return number of hedged requests sent so far
+     */
+    public int getHedgeCount() {
+        return mHedgeCount.get();
+    }
+
+
+    /**
+     * @return the time allowed for one attempt, a multiple of the observed p99
+     */
+    public long getTimeout() {
+        if (mLatencyTracker.getCount() < MIN_SAMPLES) {
+            return DEFAULT_TIMEOUT_MS;
+        }
+        long timeout = mLatencyTracker.getPercentile(99) * TIMEOUT_P99_MULTIPLE;
+        return Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, timeout));
+    }
+
+    /**
+     * @return the wait before a hedged request is sent, the observed p95, or -1 for no hedging
+     */
+    public long getHedgeDelay() {
+        if (!mHedging || mLatencyTracker.getCount() < MIN_SAMPLES) {
+            return -1;
+        }
+        return Math.max(MIN_HEDGE_DELAY_MS, mLatencyTracker.getPercentile(95));
+    }
+
+
+    /**
+     * Fetch the body of the given URL.
+     *
+     * @param url String
+     * @return the response body
+     * @throws CircuitOpenException if the endpoint is considered unhealthy
+     * @throws IOException if every attempt failed
+     */
+    public byte[] fetch(String url) throws IOException {
+
+        IOException failure = null;
+
+        for (int attempt = 0; attempt < mMaxAttempts; attempt++) {
+
+            if (!mCircuitBreaker.allowRequest()) {
+                throw new CircuitOpenException();
+            }
+
+            if (attempt > 0) {
+                backoff(attempt);
+            }
+
+            long start = System.currentTimeMillis();
+            try {
+                byte[] body = fetchHedged(url, getTimeout());
+                mCircuitBreaker.recordSuccess();
+                return body;
+
+            } catch (HttpStatusException e) {
+                if (e.isClientError()) {
+                    // the endpoint answered, the request itself is at fault
+                    mCircuitBreaker.recordSuccess();
+                    throw e;
+                }
+                mCircuitBreaker.recordFailure();
+                failure = e;
+
+            } catch (InterruptedIOException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // our caller was cancelled, which says nothing about the endpoint
+                    mCircuitBreaker.recordAbandoned();
+                    throw e;
+                }
+
+                // censored sample, the response took at least this long
+                if (e instanceof SocketTimeoutException) {
+                    mLatencyTracker.record(System.currentTimeMillis() - start);
+                }
+                mCircuitBreaker.recordFailure();
+                failure = e;
+
+            } catch (IOException e) {
+                mCircuitBreaker.recordFailure();
+                failure = e;
+            }
+        }
+
+        throw failure;
+    }
+
+
+    /**
+     * Full jitter backoff, a random wait of up to base * 2^attempt
+     */
+    private void backoff(int attempt) throws InterruptedIOException {
+        long limit = mBackoffMs << (attempt - 1);
+        long wait = (long) (mRandom.nextDouble() * limit);
+
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during backoff");
+        }
+    }
+
+
+    /**
+     * One attempt: send the request, send a hedged copy if it is slower than the hedge delay,
+     * and return the first successful response.
+     */
+    private byte[] fetchHedged(String url, long timeout) throws IOException {
+
+        CompletionService<byte[]> completion = new ExecutorCompletionService<>(mExecutor);
+        List<Future<byte[]>> futures = new ArrayList<>(2);
+
+        long hedge_delay = getHedgeDelay();
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+
+        futures.add(completion.submit(request(url, timeout)));
+        int outstanding = 1;
+
+        // nothing to hedge with until the latency is known
+        boolean hedged = hedge_delay < 0;
+
+        IOException failure = null;
+
+        try {
+            while (outstanding > 0) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    break;
+                }
+
+                long wait = hedged ? deadline - now : Math.min(deadline, start + hedge_delay) - now;
+                Future<byte[]> done = completion.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+
+                if (done == null) {
+                    if (!hedged && System.currentTimeMillis() - start >= hedge_delay) {
+                        futures.add(completion.submit(request(url, deadline - now)));
+                        outstanding++;
+                        mHedgeCount.incrementAndGet();
+                        hedged = true;
+                    }
+                    continue;
+                }
+
+                outstanding--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ?
+                            (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + url);
+
+        } finally {
+            // stop the request that lost
+            for (Future<byte[]> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        throw failure != null ? failure :
+                new SocketTimeoutException("No response within " + timeout + "ms");
+    }
+
+
+    /**
+     * A single request, recording its latency when it succeeds
+     */
+    private Callable<byte[]> request(final String url, final long timeout) {
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+
+                long start = System.currentTimeMillis();
+
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.setConnectTimeout((int) timeout);
+                connection.setReadTimeout((int) timeout);
+
+                try {
+                    int code = connection.getResponseCode();
+                    if (code < 200 || code >= 300) {
+                        throw new HttpStatusException(code, url);
+                    }
+
+                    InputStream stream = connection.getInputStream();
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    try {
+                        while ((read = stream.read(buffer)) != -1) {
+                            body.write(buffer, 0, read);
+                        }
+                    } finally {
+                        stream.close();
+                    }
+
+                    mLatencyTracker.record(System.currentTimeMillis() - start);
+                    return body.toByteArray();
+
+                } finally {
+                    connection.disconnect();
+                }
+            }
+        };
+    }
+}
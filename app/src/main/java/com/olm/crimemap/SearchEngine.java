@@ -0,0 +1,216 @@
+package com.olm.crimemap;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a SearchRequest as one sub-query per search term, all at the same time on a bounded pool
+ * of threads, so that a search takes as long as its slowest term rather than the sum of them.
+ *
+ * The geoJSON features of each sub-query are merged by incident id as they come in.  The listener
+ * is handed only the features not already seen, as soon as each sub-query completes, so the
+ * results can be drawn progressively.
+ */
+
+public class SearchEngine {
+
+    /**
+     * Where the sub-queries are answered, either the snapshot or data.sfgov.org
+     */
+    public interface Source {
+        /**
+         * @param term upper case search term, or an empty string to match every incident
+         * @param request SearchRequest holding the filters to apply
+         * @return geoJSON point features of the matching incidents
+         */
+        List<JSONObject> search(String term, SearchRequest request) throws Exception;
+    }
+
+    /**
+     * Receives the merged results, on the callback executor given to start()
+     */
+    public interface Listener {
+        void onResults(Search search, List<JSONObject> new_features);
+
+        void onComplete(Search search, int failed_sub_queries);
+    }
+
+
+    /**
+     * A running search, which may be cancelled to drop any results still to come
+     */
+    public class Search {
+
+        private final SearchRequest mRequest;
+        private final HashSet<String> mSeenIds = new HashSet<>();
+        private final List<Future<?>> mFutures = new ArrayList<>();
+
+        private volatile boolean mCancelled = false;
+        private int mRemaining;
+        private int mFailed = 0;
+
+        Search(SearchRequest request, int sub_queries){
+            mRequest = request;
+            mRemaining = sub_queries;
+        }
+
+        public SearchRequest getRequest() {
+            return mRequest;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public void cancel() {
+            mCancelled = true;
+            synchronized (this) {
+                for (Future<?> future : mFutures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        /**
+         * @return number of distinct incidents found so far
+         */
+        public synchronized int getFeatureCount() {
+            return mSeenIds.size();
+        }
+
+        /**
+         * @return number of sub-queries that could not be answered
+         */
+        public synchronized int getFailedCount() {
+            return mFailed;
+        }
+
+        /**
+         * Record the results of one sub-query
+         * @return the features not seen in any earlier sub-query
+         */
+        private synchronized List<JSONObject> merge(List<JSONObject> features) {
+            List<JSONObject> new_features = new ArrayList<>();
+            for (JSONObject feature : features) {
+                if (mSeenIds.add(featureId(feature))) {
+                    new_features.add(feature);
+                }
+            }
+            return new_features;
+        }
+
+        /**
+         * @return true if that was the last sub-query
+         */
+        private synchronized boolean subQueryDone(boolean failed) {
+            if (failed) {
+                mFailed++;
+            }
+            return --mRemaining == 0;
+        }
+    }
+
+
+    private final ExecutorService mExecutor;
+
+
+    /**
+     * @param threads number of sub-queries that may run at the same time
+     */
+    public SearchEngine(int threads){
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SearchEngine");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    /**
+     * Start the sub-queries of the request.
+     *
+     * @param request SearchRequest
+     * @param source Source answering each sub-query
+     * @param listener Listener for the merged results
+     * @param callback_executor Executor the listener is called on, such as the UI thread
+     * @return the running Search
+     */
+    public Search start(SearchRequest request, final Source source, final Listener listener,
+                        final Executor callback_executor) {
+
+        // with only filters there is a single sub-query matching every term
+        List<String> terms = request.getTerms().isEmpty() ?
+                Collections.singletonList("") : request.getTerms();
+
+        final Search search = new Search(request, terms.size());
+
+        synchronized (search) {
+            for (final String term : terms) {
+                search.mFutures.add(mExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<JSONObject> features = null;
+                        try {
+                            features = source.search(term, search.mRequest);
+                        } catch (Exception e) {
+                            // counted as a failed sub-query, the other terms are still shown
+                        }
+
+                        if (search.isCancelled()) {
+                            return;
+                        }
+
+                        // merged and handed over under the lock, so that the completion of the
+                        // last sub-query is always delivered after the results of the others
+                        synchronized (search) {
+                            final List<JSONObject> new_features = features == null ?
+                                    Collections.<JSONObject>emptyList() : search.merge(features);
+                            final boolean last = search.subQueryDone(features == null);
+
+                            callback_executor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (search.isCancelled()) {
+                                        return;
+                                    }
+                                    if (!new_features.isEmpty()) {
+                                        listener.onResults(search, new_features);
+                                    }
+                                    if (last) {
+                                        listener.onComplete(search, search.getFailedCount());
+                                    }
+                                }
+                            });
+                        }
+                    }
+                }));
+            }
+        }
+
+        return search;
+    }
+
+
+    /**
+     * @return the pdid of the feature, or the whole feature if it has none
+     */
+    static String featureId(JSONObject feature) {
+        JSONObject properties = feature.optJSONObject("properties");
+        if (properties != null && properties.has("pdid")) {
+            return properties.optString("pdid");
+        }
+        return feature.toString();
+    }
+}
@@ -0,0 +1,207 @@
+package com.olm.crimemap;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Search terms and filters entered in the search box.
+ *
+ * The text is split on commas.  Each part of the form key:value is a filter, every other part is
+ * a search term.  The filters are category:, district:, since: and until:, the dates being given
+ * as yyyy-MM-dd.  For example
+ *
+ *     burglary, stolen auto, district:mission, since:2016-09-01
+ *
+ * searches for incidents matching either term, in the Mission district, since September 1st.
+ * Terms and filter values are upper case, as are all the database records.
+ */
+
+public class SearchRequest {
+
+    static final String FILTER_DATE_FORMAT = "yyyy-MM-dd";
+
+    private final List<String> mTerms;
+    private final String mCategory;
+    private final String mDistrict;
+    private final long mSince;
+    private final long mUntil;
+
+    // start of the search when no since: filter is given
+    private final long mDefaultSince;
+
+
+    public SearchRequest(List<String> terms, String category, String district,
+                         long since, long until){
+        this(terms, category, district, since, until, since);
+    }
+
+    public SearchRequest(List<String> terms, String category, String district,
+                         long since, long until, long default_since){
+        // sorted, so that the same terms in any order make the same request
+        List<String> sorted = new ArrayList<>(terms);
+        Collections.sort(sorted);
+        mTerms = Collections.unmodifiableList(sorted);
+        mCategory = category;
+        mDistrict = district;
+        mSince = since;
+        mUntil = until;
+        mDefaultSince = default_since;
+    }
+
+
+    /**
+     * Parse the text of the search box.
+     *
+     * @param text String entered by the user
+     * @param default_since ms since epoc, start of the search when no since: filter is given
+     * @return SearchRequest
+     */
+    public static SearchRequest parse(String text, long default_since) {
+
+        List<String> terms = new ArrayList<>();
+        String category = null;
+        String district = null;
+        long since = default_since;
+        long until = Long.MAX_VALUE;
+
+        SimpleDateFormat date_format = new SimpleDateFormat(FILTER_DATE_FORMAT, Locale.US);
+
+        for (String part : text.split(",")) {
+            part = part.trim().toUpperCase(Locale.US);
+            if (part.isEmpty()) {
+                continue;
+            }
+
+            int colon = part.indexOf(':');
+            String key = colon > 0 ? part.substring(0, colon).trim() : "";
+            String value = colon > 0 ? part.substring(colon + 1).trim() : part;
+
+            try {
+                switch (key) {
+                    case "CATEGORY":
+                        category = value;
+                        break;
+                    case "DISTRICT":
+                        district = value;
+                        break;
+                    case "SINCE":
+                        since = Math.max(default_since, date_format.parse(value).getTime());
+                        break;
+                    case "UNTIL":
+                        until = date_format.parse(value).getTime();
+                        break;
+                    default:
+                        // not a known filter, so search for the whole part
+                        if (!terms.contains(part)) {
+                            terms.add(part);
+                        }
+                }
+            } catch (ParseException e) {
+                // an unreadable date is searched for as a term instead
+                if (!terms.contains(part)) {
+                    terms.add(part);
+                }
+            }
+        }
+
+        return new SearchRequest(terms, category, district, since, until, default_since);
+    }
+
+
+    /**
+     * @return the search terms, each of which is a separate sub-query.  Empty if only filters
+     * were given.
+     */
+    public List<String> getTerms() {
+        return mTerms;
+    }
+
+    /**
+     * @return upper case category filter, or null
+     */
+    public String getCategory() {
+        return mCategory;
+    }
+
+    /**
+     * @return upper case district filter, or null
+     */
+    public String getDistrict() {
+        return mDistrict;
+    }
+
+    /**
+     * @return ms since epoc, incidents before this are not included
+     */
+    public long getSince() {
+        return mSince;
+    }
+
+    /**
+     * @return ms since epoc, incidents at or after this are not included,
+     * Long.MAX_VALUE for no limit
+     */
+    public long getUntil() {
+        return mUntil;
+    }
+
+    /**
+     * @return true if neither a term nor a filter was given
+     */
+    public boolean isEmpty() {
+        return mTerms.isEmpty() && mCategory == null && mDistrict == null &&
+                mSince <= mDefaultSince && mUntil == Long.MAX_VALUE;
+    }
+
+    /**
+     * @return true if the incident passes the category, district and date filters
+     */
+    public boolean matchesFilters(String category, String district, long time_ms) {
+        return (mCategory == null || mCategory.equals(category)) &&
+                (mDistrict == null || mDistrict.equals(district)) &&
+                time_ms >= mSince && time_ms < mUntil;
+    }
+
+    /**
+     * @return key identifying the request, the same for equivalent search box texts
+     */
+    public String getKey() {
+        return toString() + "|" + mSince;
+    }
+
+    /**
+     * Short description of the terms and filters, used as the activity title
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (String term : mTerms) {
+            append(s, term);
+        }
+        if (mCategory != null) {
+            append(s, "CATEGORY:" + mCategory);
+        }
+        if (mDistrict != null) {
+            append(s, "DISTRICT:" + mDistrict);
+        }
+        SimpleDateFormat date_format = new SimpleDateFormat(FILTER_DATE_FORMAT, Locale.US);
+        if (mSince > mDefaultSince) {
+            append(s, "SINCE:" + date_format.format(mSince));
+        }
+        if (mUntil != Long.MAX_VALUE) {
+            append(s, "UNTIL:" + date_format.format(mUntil));
+        }
+        return s.toString();
+    }
+
+    private static void append(StringBuilder s, String part) {
+        if (s.length() > 0) {
+            s.append(", ");
+        }
+        s.append(part);
+    }
+}
@@ -0,0 +1,55 @@
+package com.olm.crimemap;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answers search sub-queries from the local incident snapshot.
+ * The term is matched against the category, district and description, as in
+ * IncidentSnapshot.search, and the filters of the request are applied to each match.
+ */
+
+public class SnapshotSearchSource implements SearchEngine.Source {
+
+    private final IncidentSnapshot mSnapshot;
+
+
+    public SnapshotSearchSource(IncidentSnapshot snapshot){
+        mSnapshot = snapshot;
+    }
+
+
+    @Override
+    public List<JSONObject> search(String term, SearchRequest request) throws Exception {
+
+        List<JSONObject> features = new ArrayList<>();
+
+        // matching is done once per dictionary string rather than once per row
+        boolean[] matches = term.isEmpty() ? null : mSnapshot.matchingIds(term);
+
+        int row_count = mSnapshot.getRowCount();
+        int row = mSnapshot.firstRowAtOrAfter(IncidentSnapshot.toSeconds(request.getSince()));
+
+        for (; row < row_count; row++) {
+            long time_ms = mSnapshot.getTime(row) * 1000L;
+            if (time_ms >= request.getUntil()) {
+                break;  // rows are in time order
+            }
+
+            if (matches != null && !matches[mSnapshot.getDescriptId(row)] &&
+                    !matches[mSnapshot.getCategoryId(row)] &&
+                    !matches[mSnapshot.getDistrictId(row)]) {
+                continue;
+            }
+
+            if (request.matchesFilters(mSnapshot.getCategory(row), mSnapshot.getDistrict(row),
+                    time_ms)) {
+                features.add(IncidentGeoJson.incidentFeature(mSnapshot, row));
+            }
+        }
+
+        return features;
+    }
+}
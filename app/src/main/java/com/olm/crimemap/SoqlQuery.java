@@ -0,0 +1,380 @@
+package com.olm.crimemap;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A data.sfgov.org (Socrata) query, built from typed parts rather than formatted into a URL
+ * string, so that equivalent queries always make the same URL.
+ *
+ * The parameters are always written in the same order, the $where conditions are sorted, and
+ * every value is URL encoded the same way.  The time window of a query is widened to whole
+ * buckets, so that queries made a few minutes apart still share a URL and a cache key.
+ *
+ * The shape of a query is its URL with every literal value taken out.  Two queries of the same
+ * shape only differ in their values, such as the district queries of different windows, and
+ * the app tells by the shape whether the local incident snapshot can answer a query.
+ */
+
+public class SoqlQuery {
+
+    // SoQL floating timestamp literal, in local time
+    static final String TIMESTAMP_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS";
+
+    // SimpleDateFormat is not thread safe, so each thread building queries keeps its own
+    private static final ThreadLocal<SimpleDateFormat> sTimestampFormat =
+            new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat(TIMESTAMP_FORMAT, Locale.US);
+                }
+            };
+
+    public enum Format {
+        JSON(".json"),
+        GEOJSON(".geojson");
+
+        final String extension;
+
+        Format(String extension){
+            this.extension = extension;
+        }
+    }
+
+
+    /**
+     * A $where condition comparing a column with a literal
+     */
+    private static class Condition implements Comparable<Condition> {
+        final String column;
+        final String operator;
+        final String literal;
+
+        Condition(String column, String operator, String literal){
+            this.column = column;
+            this.operator = operator;
+            this.literal = literal;
+        }
+
+        String shape() {
+            return column + operator + "?";
+        }
+
+        @Override
+        public String toString() {
+            return column + operator + literal;
+        }
+
+        // by column and operator first, so that queries of the same shape sort alike
+        @Override
+        public int compareTo(Condition other) {
+            int order = shape().compareTo(other.shape());
+            return order != 0 ? order : literal.compareTo(other.literal);
+        }
+    }
+
+
+    /**
+     * Builder of a SoqlQuery.  The select, group and order columns keep the order they are given
+     * in, as it changes the response.
+     */
+    public static class Builder {
+
+        private final String mDataset;
+        private final Format mFormat;
+        private final List<String> mSelect = new ArrayList<>();
+        private final List<Condition> mWhere = new ArrayList<>();
+        private final List<String> mGroup = new ArrayList<>();
+        private final List<String> mOrder = new ArrayList<>();
+        private String mSearchTerm;
+        private int mLimit = -1;
+        private int mOffset = -1;
+        private long mWindowStart = Long.MIN_VALUE;
+        private long mWindowEnd = Long.MAX_VALUE;
+
+        /**
+         * @param dataset URL of the dataset resource, without a format extension
+         * @param format Format of the response
+         */
+        public Builder(String dataset, Format format){
+            mDataset = dataset;
+            mFormat = format;
+        }
+
+        public Builder select(String column) {
+            mSelect.add(column);
+            return this;
+        }
+
+        /**
+         * Select the number of rows, returned in the column count
+         */
+        public Builder selectCount() {
+            mSelect.add("count(*)");
+            return this;
+        }
+
+        /**
+         * Select the average of a column, returned in the column avg_[column]
+         */
+        public Builder selectAvg(String column) {
+            mSelect.add("avg(" + column + ")");
+            return this;
+        }
+
+        public Builder whereEquals(String column, String value) {
+            mWhere.add(new Condition(column, "=", quote(value)));
+            return this;
+        }
+
+        /**
+         * Only the rows of a numeric column from low to high, both inclusive
+         */
+        public Builder whereBetween(String column, double low, double high) {
+            mWhere.add(new Condition(column, ">=", number(low)));
+            mWhere.add(new Condition(column, "<=", number(high)));
+            return this;
+        }
+
+        /**
+         * Only the rows of a timestamp column from the start of the window, inclusive, to its
+         * end, exclusive.  The window is widened to whole buckets of local time.
+         *
+         * @param column timestamp column
+         * @param start ms since epoc
+         * @param end ms since epoc, or Long.MAX_VALUE for no end
+         * @param bucket_ms length of the buckets, such as a day
+         */
+        public Builder window(String column, long start, long end, long bucket_ms) {
+            mWindowStart = floorToBucket(start, bucket_ms);
+            mWhere.add(new Condition(column, ">=", timestamp(mWindowStart)));
+
+            if (end != Long.MAX_VALUE) {
+                mWindowEnd = floorToBucket(end + bucket_ms - 1, bucket_ms);
+                mWhere.add(new Condition(column, "<", timestamp(mWindowEnd)));
+            }
+            return this;
+        }
+
+        public Builder groupBy(String column) {
+            mGroup.add(column);
+            return this;
+        }
+
+        public Builder orderBy(String column, boolean descending) {
+            mOrder.add(descending ? column + " DESC" : column);
+            return this;
+        }
+
+        /**
+         * Full text search of every column for the term, as a phrase
+         */
+        public Builder search(String term) {
+            mSearchTerm = term;
+            return this;
+        }
+
+        public Builder limit(int limit) {
+            mLimit = limit;
+            return this;
+        }
+
+        public Builder offset(int offset) {
+            mOffset = offset;
+            return this;
+        }
+
+        public SoqlQuery build() {
+            return new SoqlQuery(this);
+        }
+    }
+
+
+    private final String mDataset;
+    private final Format mFormat;
+    private final String mQueryString;
+    private final String mShape;
+    private final long mWindowStart;
+    private final long mWindowEnd;
+
+
+    private SoqlQuery(Builder builder){
+        mDataset = builder.mDataset;
+        mFormat = builder.mFormat;
+        mWindowStart = builder.mWindowStart;
+        mWindowEnd = builder.mWindowEnd;
+
+        List<Condition> where = new ArrayList<>(builder.mWhere);
+        Collections.sort(where);
+
+        StringBuilder query = new StringBuilder();
+        StringBuilder shape = new StringBuilder();
+
+        if (!builder.mSelect.isEmpty()) {
+            String select = join(builder.mSelect, ",");
+            append(query, "$select", select);
+            append(shape, "$select", select);
+        }
+        if (!where.isEmpty()) {
+            List<String> clauses = new ArrayList<>();
+            List<String> shapes = new ArrayList<>();
+            for (Condition condition : where) {
+                clauses.add(condition.toString());
+                shapes.add(condition.shape());
+            }
+            append(query, "$where", join(clauses, " AND "));
+            append(shape, "$where", join(shapes, " AND "));
+        }
+        if (!builder.mGroup.isEmpty()) {
+            String group = join(builder.mGroup, ",");
+            append(query, "$group", group);
+            append(shape, "$group", group);
+        }
+        if (!builder.mOrder.isEmpty()) {
+            String order = join(builder.mOrder, ",");
+            append(query, "$order", order);
+            append(shape, "$order", order);
+        }
+        if (builder.mSearchTerm != null) {
+            append(query, "$q", quote(builder.mSearchTerm));
+            append(shape, "$q", "?");
+        }
+        if (builder.mLimit >= 0) {
+            append(query, "$limit", Integer.toString(builder.mLimit));
+            append(shape, "$limit", "?");
+        }
+        if (builder.mOffset >= 0) {
+            append(query, "$offset", Integer.toString(builder.mOffset));
+            append(shape, "$offset", "?");
+        }
+
+        mQueryString = query.toString();
+        mShape = mDataset + mFormat.extension + "?" + shape;
+    }
+
+
+    /**
+     * @return the canonical, URL encoded query string, without the leading ?
+     */
+    public String getQueryString() {
+        return mQueryString;
+    }
+
+    /**
+     * @return full URL of the query
+     */
+    public String toUrl() {
+        return mDataset + mFormat.extension + "?" + mQueryString;
+    }
+
+    /**
+     * @return key that is the same for every equivalent query
+     */
+    public String getCacheKey() {
+        return toUrl();
+    }
+
+    /**
+     * @return the query with its literal values taken out, the same for queries that only
+     * differ in their values
+     */
+    public String getShape() {
+        return mShape;
+    }
+
+    /**
+     * @return ms since epoc, start of the time window after rounding, Long.MIN_VALUE if the
+     * query has none
+     */
+    public long getWindowStart() {
+        return mWindowStart;
+    }
+
+    /**
+     * @return ms since epoc, end of the time window after rounding, Long.MAX_VALUE if the
+     * query has none
+     */
+    public long getWindowEnd() {
+        return mWindowEnd;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof SoqlQuery && toUrl().equals(((SoqlQuery) other).toUrl());
+    }
+
+    @Override
+    public int hashCode() {
+        return toUrl().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return toUrl();
+    }
+
+
+    /**
+     * Start of the bucket holding the time, buckets being counted from a local midnight
+     */
+    static long floorToBucket(long ms, long bucket_ms) {
+        long offset = TimeZone.getDefault().getOffset(ms);
+        long local = ms + offset;
+        return local - mod(local, bucket_ms) - offset;
+    }
+
+    private static long mod(long value, long divisor) {
+        long remainder = value % divisor;
+        return remainder < 0 ? remainder + divisor : remainder;
+    }
+
+    private static String timestamp(long ms) {
+        return "'" + sTimestampFormat.get().format(new Date(ms)) + "'";
+    }
+
+    /**
+     * SoQL string literals escape a quote by doubling it
+     */
+    private static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    // to about 10cm, finer than the positions of the dataset
+    private static String number(double value) {
+        return String.format(Locale.US, "%.6f", value);
+    }
+
+    private static void append(StringBuilder query, String parameter, String value) {
+        if (query.length() > 0) {
+            query.append('&');
+        }
+        query.append(parameter).append('=').append(encode(value));
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String join(List<String> parts, String separator) {
+        StringBuilder joined = new StringBuilder();
+        for (String part : parts) {
+            if (joined.length() > 0) {
+                joined.append(separator);
+            }
+            joined.append(part);
+        }
+        return joined.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package com.olm.crimemap;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Per district breakdowns computed from a small snapshot
+ */
+public class DistrictBreakdownTest {
+
+    private static final int HOUR = 3600;
+    private static final int WEEK = 7 * 24 * HOUR;
+
+    /**
+     * Incidents in MISSION at 8pm UTC in a window of two weeks and a part, the latest being a
+     * SOUTHERN incident at the end of the window
+     *
+     * @param partial_hours hours of the oldest week inside the window
+     */
+    private static HashMap<String, DistrictBreakdown> compute(int partial_hours, int oldest_count,
+                                                              int middle_count, int latest_count)
+            throws Exception {
+        int since = 10 * WEEK;
+        int latest = since + 2 * WEEK + partial_hours * HOUR - 1;
+
+        List<Incident> incidents = new ArrayList<>();
+        int id = 1;
+        for (int i = 0; i < oldest_count; i++) {
+            incidents.add(new Incident(id++, 37.76f, -122.42f, since + 20 * HOUR + i,
+                    i == 1 ? "VANDALISM" : "ASSAULT", "MISSION", ""));
+        }
+        for (int i = 0; i < middle_count; i++) {
+            incidents.add(new Incident(id++, 37.76f, -122.42f, since + WEEK + 20 * HOUR + i,
+                    "ASSAULT", "MISSION", ""));
+        }
+        for (int i = 0; i < latest_count; i++) {
+            incidents.add(new Incident(id++, 37.76f, -122.42f, since + 2 * WEEK + 20 * HOUR + i,
+                    "ASSAULT", "MISSION", ""));
+        }
+        incidents.add(new Incident(id, 37.78f, -122.41f, latest, "BURGLARY", "SOUTHERN", ""));
+
+        File file = File.createTempFile("incidents", ".snapshot");
+        file.deleteOnExit();
+        IncidentSnapshotWriter.write(file, incidents, 0);
+
+        return DistrictBreakdown.compute(IncidentSnapshot.open(file), since * 1000L,
+                TimeZone.getTimeZone("UTC"));
+    }
+
+    @Test
+    public void compute_countsCategoriesHoursAndWeeks() throws Exception {
+        HashMap<String, DistrictBreakdown> breakdowns = compute(84, 2, 4, 4);
+
+        assertEquals(2, breakdowns.size());
+
+        DistrictBreakdown mission = breakdowns.get("MISSION");
+        assertEquals(10, mission.getTotal());
+
+        assertEquals("ASSAULT", mission.getTopCategories().get(0).category);
+        assertEquals(9, mission.getTopCategories().get(0).count);
+        assertEquals("VANDALISM", mission.getTopCategories().get(1).category);
+
+        assertEquals(20, mission.getBusiestHour());
+        assertEquals(10, mission.getHourly()[20]);
+
+        assertArrayEquals(new int[]{2, 4, 4}, mission.getWeekly());
+
+        assertEquals(11, breakdowns.get("SOUTHERN").getBusiestHour());
+    }
+
+    @Test
+    public void trend_countsPartialWeekForTheDaysItCovers() throws Exception {
+        // 2 incidents in the first half week is the same rate as 4 in each later week
+        DistrictBreakdown flat = compute(84, 2, 4, 4).get("MISSION");
+        assertEquals(0, flat.getTrendPercent());
+
+        DistrictBreakdown rising = compute(84, 2, 4, 8).get("MISSION");
+        assertEquals(100, rising.getTrendPercent());
+    }
+
+    @Test
+    public void trend_ignoresPartialWeekUnderADay() throws Exception {
+        DistrictBreakdown mission = compute(22, 2, 4, 4).get("MISSION");
+
+        assertEquals(3, mission.getWeekly().length);
+        assertEquals(0, mission.getTrendPercent());
+    }
+}
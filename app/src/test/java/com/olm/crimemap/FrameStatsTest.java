@@ -0,0 +1,91 @@
+package com.olm.crimemap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Attribution of frame times to the operations of FrameStats
+ */
+public class FrameStatsTest {
+
+    private static final long FRAME_NS = 16000000L;
+
+    private static final String ANIMATION = "animation";
+    private static final String LAYER_ADD = "layer add";
+    private static final String PARSE_HAND_OFF = "parse hand-off";
+
+    @Test
+    public void onFrame_chargesOperationEndedBetweenFrames() {
+        FrameStats stats = new FrameStats(FRAME_NS);
+
+        // an operation begun and ended before the next frame, which it delayed by 3 intervals
+        assertTrue(stats.begin(LAYER_ADD, 1000));
+        stats.end(LAYER_ADD);
+
+        assertFalse(stats.onFrame(1000 + 3 * FRAME_NS));
+
+        FrameStats.Operation operation = stats.getOperation(LAYER_ADD);
+        assertEquals(1, operation.getFrames());
+        assertEquals(2, operation.getDroppedFrames());
+        assertEquals(48.0, operation.getPercentileMs(50), 0.01);
+    }
+
+    @Test
+    public void onFrame_chargesEveryRunningOperation() {
+        FrameStats stats = new FrameStats(FRAME_NS);
+
+        long time = 0;
+        assertTrue(stats.begin(ANIMATION, time));
+
+        // smooth frames, with a slow frame once the layer add joins in
+        for (int i = 0; i < 10; i++) {
+            time += FRAME_NS;
+            assertTrue(stats.onFrame(time));
+        }
+
+        assertFalse(stats.begin(LAYER_ADD, time + 1000));
+        stats.end(LAYER_ADD);
+        time += 2 * FRAME_NS;
+        assertTrue(stats.onFrame(time));
+
+        // the layer add is no longer charged
+        time += FRAME_NS;
+        assertTrue(stats.onFrame(time));
+
+        stats.end(ANIMATION);
+        time += FRAME_NS;
+        assertFalse(stats.onFrame(time));
+        assertFalse(stats.isWatching());
+
+        FrameStats.Operation animation = stats.getOperation(ANIMATION);
+        assertEquals(13, animation.getFrames());
+        assertEquals(1, animation.getDroppedFrames());
+        assertEquals(16.0, animation.getPercentileMs(50), 0.01);
+        assertEquals(32.0, animation.getPercentileMs(99), 0.01);
+
+        FrameStats.Operation layer_add = stats.getOperation(LAYER_ADD);
+        assertEquals(1, layer_add.getFrames());
+        assertEquals(1, layer_add.getDroppedFrames());
+
+        assertNull(stats.getOperation(PARSE_HAND_OFF));
+        assertTrue(stats.getReport().startsWith("animation: 13 frames, 1 dropped, p50=16.0ms"));
+    }
+
+    @Test
+    public void end_keepsNestedOperationRunning() {
+        FrameStats stats = new FrameStats(FRAME_NS);
+
+        stats.begin(PARSE_HAND_OFF, 0);
+        stats.begin(PARSE_HAND_OFF, 0);
+        stats.end(PARSE_HAND_OFF);
+
+        assertTrue(stats.onFrame(FRAME_NS));
+        stats.end(PARSE_HAND_OFF);
+
+        // charged with the frame after its end, and no further
+        assertFalse(stats.onFrame(2 * FRAME_NS));
+
+        assertEquals(2, stats.getOperation(PARSE_HAND_OFF).getFrames());
+    }
+}
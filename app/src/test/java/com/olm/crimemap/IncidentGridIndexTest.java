@@ -0,0 +1,73 @@
+package com.olm.crimemap;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Radius queries of IncidentGridIndex checked against a scan of every row
+ */
+public class IncidentGridIndexTest {
+
+    @Test
+    public void distanceMeters_matchesKnownDistance() {
+        // Ferry Building to Coit Tower is about 1.3 km
+        double distance = IncidentGridIndex.distanceMeters(37.7955, -122.3937, 37.8024, -122.4058);
+        assertEquals(1310, distance, 30);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void build_rejectsRowsThatDoNotFitTheKey() {
+        IncidentGridIndex.checkRowCount(IncidentGridIndex.MAX_ROWS + 1);
+    }
+
+    @Test
+    public void within_matchesFullScan() throws Exception {
+        Random random = new Random(42);
+
+        List<Incident> incidents = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            incidents.add(new Incident(i,
+                    37.70f + random.nextFloat() * 0.12f,
+                    -122.51f + random.nextFloat() * 0.15f,
+                    random.nextInt(10000), "CATEGORY", "DISTRICT", "DESCRIPTION"));
+        }
+
+        File file = File.createTempFile("incidents", ".snapshot");
+        file.deleteOnExit();
+        IncidentSnapshotWriter.write(file, incidents, 0);
+
+        final IncidentSnapshot snapshot = IncidentSnapshot.open(file);
+        IncidentGridIndex index = IncidentGridIndex.build(snapshot);
+
+        double lat = 37.7749, lon = -122.4194;
+        double radius = 600;
+        long since_ms = 5000L * 1000;
+
+        final List<Integer> found = new ArrayList<>();
+        int count = index.within(lat, lon, radius, since_ms, new IncidentSnapshot.RowVisitor() {
+            @Override
+            public void visit(int row) {
+                found.add(row);
+            }
+        });
+        assertEquals(found.size(), count);
+
+        int expected = 0;
+        for (int row = 0; row < snapshot.getRowCount(); row++) {
+            if (snapshot.getTime(row) >= 5000 &&
+                    IncidentGridIndex.distanceMeters(lat, lon,
+                            snapshot.getLat(row), snapshot.getLon(row)) <= radius) {
+                expected++;
+                assertTrue(found.contains(row));
+            }
+        }
+        assertEquals(expected, count);
+        assertTrue(expected > 0);
+    }
+}
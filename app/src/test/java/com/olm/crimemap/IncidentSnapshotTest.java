@@ -0,0 +1,144 @@
+package com.olm.crimemap;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip of incidents through IncidentSnapshotWriter and IncidentSnapshot
+ */
+public class IncidentSnapshotTest {
+
+    private static IncidentSnapshot writeSnapshot(List<Incident> incidents) throws Exception {
+        File file = File.createTempFile("incidents", ".snapshot");
+        file.deleteOnExit();
+
+        IncidentSnapshotWriter.write(file, incidents, 1000L * 1000);
+        return IncidentSnapshot.open(file);
+    }
+
+    private static List<Incident> sampleIncidents() {
+        List<Incident> incidents = new ArrayList<>();
+        incidents.add(new Incident(3, 37.76f, -122.42f, 3000, "ASSAULT", "MISSION", "BATTERY"));
+        incidents.add(new Incident(1, 37.78f, -122.41f, 1000, "LARCENY/THEFT", "SOUTHERN",
+                "GRAND THEFT FROM LOCKED AUTO"));
+        incidents.add(new Incident(2, 37.75f, -122.43f, 2000, "VANDALISM", "MISSION",
+                "MALICIOUS MISCHIEF"));
+        incidents.add(new Incident(4, 37.77f, -122.40f, 4000, "LARCENY/THEFT", "MISSION",
+                "PETTY THEFT OF PROPERTY"));
+        return incidents;
+    }
+
+    @Test
+    public void columns_areSortedByTime() throws Exception {
+        IncidentSnapshot snapshot = writeSnapshot(sampleIncidents());
+
+        assertEquals(4, snapshot.getRowCount());
+        assertEquals(1000L * 1000, snapshot.getWindowStart());
+
+        for (int row = 0; row < 4; row++) {
+            assertEquals(row + 1, snapshot.getId(row));
+            assertEquals((row + 1) * 1000, snapshot.getTime(row));
+        }
+
+        assertEquals("SOUTHERN", snapshot.getDistrict(0));
+        assertEquals("ASSAULT", snapshot.getCategory(2));
+        assertEquals("BATTERY", snapshot.getDescript(2));
+        assertEquals(37.76f, snapshot.getLat(2), 0f);
+        assertEquals(-122.42f, snapshot.getLon(2), 0f);
+    }
+
+    @Test
+    public void concurrentWriters_eachReplaceTheWholeFile() throws Exception {
+        final File file = File.createTempFile("incidents", ".snapshot");
+        file.deleteOnExit();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 20; j++) {
+                            IncidentSnapshotWriter.write(file, sampleIncidents(), 1000L * 1000);
+                        }
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(4, IncidentSnapshot.open(file).getRowCount());
+
+        // no temp file is left behind
+        File[] left = file.getParentFile().listFiles();
+        for (File other : left == null ? new File[0] : left) {
+            assertFalse(other.getName(), other.getName().startsWith(file.getName()) &&
+                    other.getName().endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    public void firstRowAtOrAfter_binarySearchesTime() throws Exception {
+        IncidentSnapshot snapshot = writeSnapshot(sampleIncidents());
+
+        assertEquals(0, snapshot.firstRowAtOrAfter(0));
+        assertEquals(1, snapshot.firstRowAtOrAfter(1001));
+        assertEquals(1, snapshot.firstRowAtOrAfter(2000));
+        assertEquals(4, snapshot.firstRowAtOrAfter(5000));
+    }
+
+    @Test
+    public void districtSummaries_areOrderedByCount() throws Exception {
+        IncidentSnapshot snapshot = writeSnapshot(sampleIncidents());
+
+        List<IncidentSnapshot.DistrictSummary> summaries = snapshot.districtSummaries(0);
+        assertEquals(2, summaries.size());
+        assertEquals("MISSION", summaries.get(0).district);
+        assertEquals(3, summaries.get(0).count);
+        assertEquals((37.76 + 37.75 + 37.77) / 3, summaries.get(0).avg_lat, 1e-4);
+
+        // the time window drops the earliest incident, the only one in SOUTHERN
+        summaries = snapshot.districtSummaries(1500L * 1000);
+        assertEquals(1, summaries.size());
+    }
+
+    @Test
+    public void search_matchesAnyStringColumn() throws Exception {
+        final IncidentSnapshot snapshot = writeSnapshot(sampleIncidents());
+
+        final List<Long> ids = new ArrayList<>();
+        snapshot.search("THEFT", 0, new IncidentSnapshot.RowVisitor() {
+            @Override
+            public void visit(int row) {
+                ids.add(snapshot.getId(row));
+            }
+        });
+        assertEquals(2, ids.size());
+        assertEquals(1L, (long) ids.get(0));
+        assertEquals(4L, (long) ids.get(1));
+
+        final int[] count = new int[1];
+        IncidentSnapshot.RowVisitor counter = new IncidentSnapshot.RowVisitor() {
+            @Override
+            public void visit(int row) {
+                count[0]++;
+            }
+        };
+
+        snapshot.search("MISSION", 2500L * 1000, counter);
+        assertEquals(2, count[0]);
+    }
+}
@@ -0,0 +1,399 @@
+package com.olm.crimemap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * End to end performance of the query to markers path, against SocrataStandIn replaying the
+ * sample responses in src/test/resources at different sizes, latencies and bandwidths.
+ *
+ * The district scenario downloads through ResilientFetcher and runs the parse, rank and style
+ * steps of MarkerPipeline, as DownloadGeoJsonFile does.  The search scenarios run a SearchRequest
+ * through SearchEngine and NetworkSearchSource, then build the merged collection and style each
+ * result with MarkerPipeline as the search listener of MapsActivity does.  Parsing that collection
+ * into a GeoJsonLayer and applying the styles to its features need the Android map classes, and
+ * are not measured.  Hedging is off, so that every run makes one request.
+ *
+ * The scenarios run in a thread group of their own, which the fetcher and search threads they
+ * start join, so that the allocations counted are only those of this test and not of threads
+ * left running by other tests in the same JVM.
+ *
+ * The scenarios are run once for the class, and their figures printed.  Allocations per feature
+ * are always checked against pipeline_baseline.properties, as they hardly depend on the machine.
+ * The latency and throughput are only checked when the pipeline.timing system property is true,
+ * as set by ./gradlew testDebugUnitTest -PpipelineTiming, on a quiet machine.
+ */
+public class PipelinePerformanceTest {
+
+    private static final int WARMUP_RUNS = 3;
+    private static final String SEARCH_TEXT = "THEFT";
+
+    /**
+     * A response size and the network it is sent over
+     */
+    private static class Scenario {
+        final String name;
+        final boolean district;
+        final int features;
+        final long latency_ms;
+        final long bytes_per_second;
+        final int chunk_bytes;
+        final int runs;
+
+        Scenario(String name, boolean district, int features, long latency_ms,
+                 long bytes_per_second, int chunk_bytes, int runs){
+            this.name = name;
+            this.district = district;
+            this.features = features;
+            this.latency_ms = latency_ms;
+            this.bytes_per_second = bytes_per_second;
+            this.chunk_bytes = chunk_bytes;
+            this.runs = runs;
+        }
+    }
+
+    private static final Scenario[] SCENARIOS = {
+            new Scenario("district", true, 10, 40, 0, 0, 12),
+            new Scenario("search_small", false, 200, 40, 2000000, 4096, 10),
+            new Scenario("search_large", false, 5000, 80, 8000000, 16384, 5),
+            new Scenario("search_large_fast", false, 5000, 0, 0, 0, 8),
+    };
+
+    // runs the listener on the sub-query's own thread, as sSearchLayerExecutor runs it off the
+    // UI thread in the app, so that its allocations are counted
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    // the threads whose allocations are counted: the scenario runner and those it starts
+    private static final ThreadGroup MEASURED_THREADS = new ThreadGroup("PipelinePerformanceTest");
+
+
+    private static SocrataStandIn sStandIn;
+    private static SearchEngine sSearchEngine;
+    private static Properties sBaseline;
+    private static Map<Scenario, Result> sResults;
+
+
+    @BeforeClass
+    public static void runScenarios() throws Exception {
+        sStandIn = new SocrataStandIn();
+        sSearchEngine = new SearchEngine(1);
+
+        sBaseline = new Properties();
+        InputStream in = PipelinePerformanceTest.class.getResourceAsStream(
+                "/pipeline_baseline.properties");
+        try {
+            sBaseline.load(in);
+        } finally {
+            in.close();
+        }
+
+        System.out.println(String.format(Locale.US, "%-18s %6s %9s %8s %8s %11s %8s %12s %7s",
+                "scenario", "bytes", "features", "p50 ms", "p95 ms", "features/s", "MB/s",
+                "alloc/feat", "hedges"));
+
+        sResults = new LinkedHashMap<>();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        Thread runner = new Thread(MEASURED_THREADS, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Scenario scenario : SCENARIOS) {
+                        Result result = PipelinePerformanceTest.run(scenario);
+                        System.out.println(result);
+                        sResults.put(scenario, result);
+                    }
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        }, "PipelinePerformanceTest");
+        runner.start();
+        runner.join();
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    @AfterClass
+    public static void stopStandIn() {
+        sStandIn.stop();
+    }
+
+
+    @Test
+    public void pipeline_allocationsStayWithinBaseline() {
+        double tolerance = Double.parseDouble(sBaseline.getProperty("alloc_tolerance"));
+        List<String> regressions = new ArrayList<>();
+
+        for (Result result : sResults.values()) {
+            double max_alloc = limit(result.scenario, "alloc_bytes_per_feature") * (1 + tolerance);
+
+            if (result.allocPerFeature() > max_alloc) {
+                regressions.add(String.format(Locale.US, "%s allocations %.0f B/feature > %.0f",
+                        result.scenario.name, result.allocPerFeature(), max_alloc));
+            }
+        }
+
+        assertTrue("Pipeline regressed: " + regressions, regressions.isEmpty());
+    }
+
+    @Test
+    public void pipeline_timingStaysWithinBaseline() {
+        assumeTrue(Boolean.getBoolean("pipeline.timing"));
+
+        double tolerance = Double.parseDouble(sBaseline.getProperty("timing_tolerance"));
+        List<String> regressions = new ArrayList<>();
+
+        for (Result result : sResults.values()) {
+            Scenario scenario = result.scenario;
+            double max_p95 = limit(scenario, "p95_ms") * (1 + tolerance);
+            double min_throughput = limit(scenario, "features_per_second") / (1 + tolerance);
+
+            if (result.latency.getPercentile(95) > max_p95) {
+                regressions.add(String.format(Locale.US, "%s p95 %dms > %.0fms", scenario.name,
+                        result.latency.getPercentile(95), max_p95));
+            }
+            if (result.featuresPerSecond() < min_throughput) {
+                regressions.add(String.format(Locale.US, "%s throughput %.0f/s < %.0f/s",
+                        scenario.name, result.featuresPerSecond(), min_throughput));
+            }
+        }
+
+        assertTrue("Pipeline regressed: " + regressions, regressions.isEmpty());
+    }
+
+
+    /**
+     * Figures of the measured runs of a scenario
+     */
+    private static class Result {
+        final Scenario scenario;
+        final int bytes;
+        final LatencyTracker latency;
+        long total_ns = 0;
+        long total_markers = 0;
+        long total_alloc = 0;
+        int hedges;
+
+        Result(Scenario scenario, int bytes){
+            this.scenario = scenario;
+            this.bytes = bytes;
+            this.latency = new LatencyTracker(scenario.runs);
+        }
+
+        double featuresPerSecond() {
+            return total_markers * 1e9 / total_ns;
+        }
+
+        double megabytesPerSecond() {
+            return (double) bytes * scenario.runs * 1e9 / total_ns / 1e6;
+        }
+
+        /**
+         * @return bytes allocated per marker, or 0 if allocations can not be counted
+         */
+        double allocPerFeature() {
+            return total_alloc < 0 ? 0 : (double) total_alloc / total_markers;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-18s %6d %9d %8d %8d %11.0f %8.2f %12.0f %7d",
+                    scenario.name, bytes, scenario.features, latency.getPercentile(50),
+                    latency.getPercentile(95), featuresPerSecond(), megabytesPerSecond(),
+                    allocPerFeature(), hedges);
+        }
+    }
+
+
+    private static Result run(Scenario scenario) throws Exception {
+        byte[] body = scenario.district ? resource("/district_response.geojson") :
+                searchResponse(scenario.features);
+
+        sStandIn.setResponse(body, scenario.latency_ms, scenario.bytes_per_second,
+                scenario.chunk_bytes);
+
+        ResilientFetcher fetcher = new ResilientFetcher(new LatencyTracker(), new CircuitBreaker(),
+                ResilientFetcher.DEFAULT_MAX_ATTEMPTS, ResilientFetcher.DEFAULT_BACKOFF_MS, false);
+
+        // the queries of the app, only the host differs
+        String district_url = IncidentQueries.districtCounts(sStandIn.getDatasetUrl(), 0).toUrl();
+        NetworkSearchSource source =
+                new NetworkSearchSource(fetcher, null, sStandIn.getDatasetUrl());
+        SearchRequest request = SearchRequest.parse(SEARCH_TEXT, 0);
+
+        Result result = new Result(scenario, body.length);
+
+        for (int run = 0; run < WARMUP_RUNS + scenario.runs; run++) {
+            long alloc_before = allocatedBytes();
+            long start = System.nanoTime();
+
+            int markers = scenario.district ? districtMarkers(fetcher, district_url) :
+                    searchMarkers(source, request);
+
+            long elapsed = System.nanoTime() - start;
+            long alloc_after = allocatedBytes();
+
+            assertEquals(scenario.features, markers);
+
+            if (run >= WARMUP_RUNS) {
+                result.latency.record(elapsed / 1000000);
+                result.total_ns += elapsed;
+                result.total_markers += markers;
+                result.total_alloc = alloc_before < 0 || result.total_alloc < 0 ? -1 :
+                        result.total_alloc + alloc_after - alloc_before;
+            }
+        }
+
+        result.hedges = fetcher.getHedgeCount();
+        return result;
+    }
+
+    /**
+     * The download, parse, rank and style steps of the district query
+     * @return number of markers styled
+     */
+    private static int districtMarkers(ResilientFetcher fetcher, String url) throws Exception {
+        JSONObject collection = MarkerPipeline.parse(fetcher.fetch(url));
+
+        HashMap<String, String> point_order = MarkerPipeline.rankByCount(collection);
+        return MarkerPipeline.districtMarkers(collection, point_order).size();
+    }
+
+    /**
+     * A search through SearchEngine, styling the results as they are handed over
+     * @return number of markers styled
+     */
+    private static int searchMarkers(NetworkSearchSource source, SearchRequest request)
+            throws Exception {
+
+        final AtomicInteger markers = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        sSearchEngine.start(request, source, new SearchEngine.Listener() {
+            @Override
+            public void onResults(SearchEngine.Search search, List<JSONObject> new_features) {
+                try {
+                    JSONArray features = new JSONArray();
+                    for (JSONObject feature : new_features) {
+                        features.put(feature);
+                    }
+                    JSONObject collection = IncidentGeoJson.collection(features);
+
+                    for (JSONObject feature : MarkerPipeline.features(collection)) {
+                        if (MarkerPipeline.searchMarker(feature) != null) {
+                            markers.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    // not counted, so the run fails
+                }
+            }
+
+            @Override
+            public void onComplete(SearchEngine.Search search, int failed_sub_queries) {
+                failed.set(failed_sub_queries);
+                done.countDown();
+            }
+        }, DIRECT_EXECUTOR);
+
+        assertTrue("search did not complete", done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, failed.get());
+        return markers.get();
+    }
+
+
+    private static double limit(Scenario scenario, String key) {
+        String value = sBaseline.getProperty(scenario.name + "." + key);
+        assertNotNull("No baseline for " + scenario.name + "." + key, value);
+        return Double.parseDouble(value);
+    }
+
+    /**
+     * @return bytes allocated so far by the threads of MEASURED_THREADS, or -1 if the JVM can not
+     * count them
+     */
+    private static long allocatedBytes() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+
+        Thread[] threads = new Thread[MEASURED_THREADS.activeCount() + 16];
+        int count = MEASURED_THREADS.enumerate(threads);
+
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += Math.max(0, bean.getThreadAllocatedBytes(threads[i].getId()));
+        }
+        return total;
+    }
+
+    /**
+     * The sample search response, with its features repeated under new ids to the given count
+     */
+    private static byte[] searchResponse(int feature_count) throws Exception {
+        JSONArray sample = MarkerPipeline.parse(resource("/search_response.geojson"))
+                .getJSONArray("features");
+
+        JSONArray features = new JSONArray();
+        for (int i = 0; i < feature_count; i++) {
+            JSONObject feature = new JSONObject(sample.getJSONObject(i % sample.length()).toString());
+            feature.getJSONObject("properties").put("pdid", Long.toString(16000000000000L + i));
+            features.put(feature);
+        }
+
+        return new JSONObject().put("type", "FeatureCollection").put("features", features)
+                .toString().getBytes("UTF-8");
+    }
+
+    private static byte[] resource(String name) throws IOException {
+        InputStream in = PipelinePerformanceTest.class.getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
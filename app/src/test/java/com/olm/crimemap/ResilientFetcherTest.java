@@ -0,0 +1,251 @@
+package com.olm.crimemap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * ResilientFetcher against a local stand-in for data.sfgov.org that injects delays and errors
+ */
+public class ResilientFetcherTest {
+
+    private static final byte[] BODY = "{\"type\":\"FeatureCollection\",\"features\":[]}".getBytes();
+
+    private HttpServer mServer;
+    private String mUrl;
+
+    // per request behaviour of the stand-in: the delay, and the status code to answer with
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private volatile long mFirstRequestDelayMs = 0;
+    private volatile int mStatus = 200;
+
+    @Before
+    public void startServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/resource", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (mRequests.incrementAndGet() == 1 && mFirstRequestDelayMs > 0) {
+                    try {
+                        Thread.sleep(mFirstRequestDelayMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                exchange.sendResponseHeaders(mStatus, mStatus == 200 ? BODY.length : -1);
+                if (mStatus == 200) {
+                    OutputStream body = exchange.getResponseBody();
+                    body.write(BODY);
+                    body.close();
+                }
+                exchange.close();
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/resource/cuks-n6tp.geojson";
+    }
+
+    @After
+    public void stopServer() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void latencyTracker_reportsPercentiles() {
+        LatencyTracker tracker = new LatencyTracker(100);
+        for (int i = 1; i <= 100; i++) {
+            tracker.record(i);
+        }
+
+        assertEquals(50, tracker.getPercentile(50));
+        assertEquals(95, tracker.getPercentile(95));
+        assertEquals(99, tracker.getPercentile(99));
+
+        // the oldest samples are dropped once the buffer is full
+        tracker.record(1000);
+        assertEquals(100, tracker.getCount());
+        assertEquals(1000, tracker.getPercentile(100));
+        assertEquals(2, tracker.getPercentile(0));
+    }
+
+    @Test
+    public void timeouts_adaptToObservedLatency() {
+        LatencyTracker tracker = new LatencyTracker();
+        ResilientFetcher fetcher = new ResilientFetcher(tracker, new CircuitBreaker(), 1, 0);
+
+        assertEquals(-1, fetcher.getHedgeDelay());
+
+        for (int i = 0; i < 20; i++) {
+            tracker.record(1000);
+        }
+        assertEquals(1000, fetcher.getHedgeDelay());
+        assertEquals(4000, fetcher.getTimeout());
+    }
+
+    @Test
+    public void slowRequest_isHedged() throws Exception {
+        LatencyTracker tracker = new LatencyTracker();
+        for (int i = 0; i < 20; i++) {
+            tracker.record(20);
+        }
+        ResilientFetcher fetcher = new ResilientFetcher(tracker, new CircuitBreaker(), 1, 0);
+
+        mFirstRequestDelayMs = 1500;
+
+        long start = System.currentTimeMillis();
+        byte[] body = fetcher.fetch(mUrl);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertArrayEquals(BODY, body);
+        assertEquals(1, fetcher.getHedgeCount());
+        assertTrue("hedged fetch took " + elapsed + "ms", elapsed < 1000);
+    }
+
+    @Test
+    public void stalledRequest_timesOut() throws Exception {
+        LatencyTracker tracker = new LatencyTracker();
+        for (int i = 0; i < 20; i++) {
+            tracker.record(20);
+        }
+        ResilientFetcher fetcher = new ResilientFetcher(tracker, new CircuitBreaker(), 1, 0);
+
+        // both the request and its hedge stall past the 2s minimum timeout
+        mServer.removeContext("/resource");
+        mServer.createContext("/resource", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.close();
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        try {
+            fetcher.fetch(mUrl);
+            fail("expected a timeout");
+        } catch (IOException e) {
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("timed out after " + elapsed + "ms", elapsed < 3000);
+        }
+
+        // the timed out attempt counts as a latency of at least the timeout, so the next
+        // attempt is given longer
+        assertTrue("timeout " + fetcher.getTimeout() + "ms", fetcher.getTimeout() > 2000);
+    }
+
+    @Test
+    public void clientError_isNotRetriedOrCounted() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 60 * 1000);
+        ResilientFetcher fetcher = new ResilientFetcher(new LatencyTracker(), breaker, 3, 1);
+
+        mStatus = 404;
+
+        try {
+            fetcher.fetch(mUrl);
+            fail("expected the fetch to fail");
+        } catch (ResilientFetcher.HttpStatusException e) {
+            assertEquals(404, e.getCode());
+        }
+        assertEquals(1, mRequests.get());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void interruptedFetch_doesNotOpenTheCircuit() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 60 * 1000);
+        final ResilientFetcher fetcher = new ResilientFetcher(new LatencyTracker(), breaker, 1, 0);
+
+        mFirstRequestDelayMs = 2000;
+
+        // the caller is cancelled while its request is outstanding
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fetcher.fetch(mUrl);
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        });
+        caller.start();
+        while (mRequests.get() == 0) {
+            Thread.sleep(10);
+        }
+        caller.interrupt();
+        caller.join();
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void abandonedTrial_isLetThroughAgain() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        breaker.recordFailure();
+        Thread.sleep(60);
+
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        breaker.recordAbandoned();
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void repeatedFailures_openTheCircuit() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60 * 1000);
+        ResilientFetcher fetcher = new ResilientFetcher(new LatencyTracker(), breaker, 3, 1);
+
+        mStatus = 503;
+
+        try {
+            fetcher.fetch(mUrl);
+            fail("expected the fetch to fail");
+        } catch (ResilientFetcher.CircuitOpenException e) {
+            fail("the first fetch should reach the server");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(3, mRequests.get());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        try {
+            fetcher.fetch(mUrl);
+            fail("expected the circuit to be open");
+        } catch (ResilientFetcher.CircuitOpenException e) {
+            // expected, without another request
+        }
+        assertEquals(3, mRequests.get());
+    }
+
+    @Test
+    public void halfOpenCircuit_closesOnSuccess() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 0);
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        ResilientFetcher fetcher = new ResilientFetcher(new LatencyTracker(), breaker, 1, 0);
+        assertArrayEquals(BODY, fetcher.fetch(mUrl));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,155 @@
+package com.olm.crimemap;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fan-out and merging of multi-term searches by SearchEngine
+ */
+public class SearchEngineTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static JSONObject feature(String pdid) throws Exception {
+        return new JSONObject("{\"type\":\"Feature\",\"properties\":{\"pdid\":\"" + pdid + "\"}}");
+    }
+
+    /**
+     * Source answering each term after a delay, with the pdids given for it
+     */
+    private static SearchEngine.Source delayedSource() {
+        return new SearchEngine.Source() {
+            @Override
+            public List<JSONObject> search(String term, SearchRequest request) throws Exception {
+                switch (term) {
+                    case "FAST":
+                        Thread.sleep(50);
+                        return Arrays.asList(feature("1"), feature("2"));
+                    case "SLOW":
+                        Thread.sleep(400);
+                        return Arrays.asList(feature("2"), feature("3"));
+                    case "BROKEN":
+                        throw new Exception("unavailable");
+                    default:
+                        Thread.sleep(400);
+                        return Arrays.asList(feature("4"));
+                }
+            }
+        };
+    }
+
+    @Test
+    public void parse_splitsTermsAndFilters() {
+        SearchRequest request = SearchRequest.parse(
+                "vandalism, burglary ,district:mission, category: assault,since:bad", 1000);
+
+        assertEquals(Arrays.asList("BURGLARY", "SINCE:BAD", "VANDALISM"), request.getTerms());
+        assertEquals("MISSION", request.getDistrict());
+        assertEquals("ASSAULT", request.getCategory());
+        assertEquals(1000, request.getSince());
+        assertEquals(Long.MAX_VALUE, request.getUntil());
+
+        // the same terms in another order make the same request
+        assertEquals(request.getKey(), SearchRequest.parse(
+                "burglary, since:bad, vandalism, category:assault, district:mission", 1000).getKey());
+    }
+
+    @Test
+    public void parse_sinceAloneIsAFilter() {
+        SearchRequest request = SearchRequest.parse("since:2016-09-01", 0);
+
+        assertFalse(request.isEmpty());
+        assertEquals("SINCE:2016-09-01", request.toString());
+
+        // no later than the default, so nothing to search for
+        SearchRequest earlier = SearchRequest.parse("since:2016-09-01", request.getSince());
+        assertTrue(earlier.isEmpty());
+        assertEquals("", earlier.toString());
+    }
+
+    @Test
+    public void subQueries_runConcurrentlyAndMerge() throws Exception {
+        SearchEngine engine = new SearchEngine(3);
+
+        final List<List<String>> deliveries = new ArrayList<>();
+        final int[] failed = {-1};
+        final CountDownLatch done = new CountDownLatch(1);
+
+        long start = System.currentTimeMillis();
+
+        engine.start(SearchRequest.parse("SLOW, FAST, OTHER, BROKEN", 0), delayedSource(),
+                new SearchEngine.Listener() {
+                    @Override
+                    public void onResults(SearchEngine.Search search, List<JSONObject> features) {
+                        List<String> ids = new ArrayList<>();
+                        for (JSONObject feature : features) {
+                            ids.add(SearchEngine.featureId(feature));
+                        }
+                        synchronized (deliveries) {
+                            deliveries.add(ids);
+                        }
+                    }
+
+                    @Override
+                    public void onComplete(SearchEngine.Search search, int failed_sub_queries) {
+                        failed[0] = failed_sub_queries;
+                        done.countDown();
+                    }
+                }, DIRECT);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long elapsed = System.currentTimeMillis() - start;
+
+        // the two slow terms ran side by side, on a pool of three
+        assertTrue("search took " + elapsed + "ms", elapsed < 750);
+        assertEquals(1, failed[0]);
+
+        // the fast term is drawn first, and incident 2 only once
+        assertEquals(3, deliveries.size());
+        assertEquals(Arrays.asList("1", "2"), deliveries.get(0));
+
+        List<String> all = new ArrayList<>();
+        for (List<String> ids : deliveries) {
+            all.addAll(ids);
+        }
+        assertEquals(4, all.size());
+        assertTrue(all.containsAll(Arrays.asList("1", "2", "3", "4")));
+    }
+
+    @Test
+    public void cancelledSearch_deliversNothing() throws Exception {
+        SearchEngine engine = new SearchEngine(2);
+
+        final int[] calls = {0};
+        SearchEngine.Search search = engine.start(SearchRequest.parse("FAST", 0), delayedSource(),
+                new SearchEngine.Listener() {
+                    @Override
+                    public void onResults(SearchEngine.Search search, List<JSONObject> features) {
+                        calls[0]++;
+                    }
+
+                    @Override
+                    public void onComplete(SearchEngine.Search search, int failed_sub_queries) {
+                        calls[0]++;
+                    }
+                }, DIRECT);
+
+        search.cancel();
+        Thread.sleep(200);
+        assertEquals(0, calls[0]);
+    }
+}
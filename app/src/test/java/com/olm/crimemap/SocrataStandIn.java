@@ -0,0 +1,114 @@
+package com.olm.crimemap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Local stand-in for data.sfgov.org, replaying a response body to every request under /resource.
+ *
+ * The response waits for the latency before its headers, and is then sent in chunks of the
+ * given size, paced to the given bandwidth.  Without chunking the body is sent in one write with
+ * its length.
+ */
+class SocrataStandIn {
+
+    static final String THREAD_NAME = "SocrataStandIn";
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+
+    private volatile byte[] mBody = new byte[0];
+    private volatile long mLatencyMs = 0;
+    private volatile long mBytesPerSecond = 0;
+    private volatile int mChunkBytes = 0;
+
+
+    SocrataStandIn() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/resource", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    replay(exchange);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, THREAD_NAME);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+
+    /**
+     * @param body response to replay
+     * @param latency_ms delay before the response headers
+     * @param bytes_per_second bandwidth of the body, 0 for no limit
+     * @param chunk_bytes size of each chunk of the body, 0 to send it in one write
+     */
+    void setResponse(byte[] body, long latency_ms, long bytes_per_second, int chunk_bytes) {
+        mBody = body;
+        mLatencyMs = latency_ms;
+        mBytesPerSecond = bytes_per_second;
+        mChunkBytes = chunk_bytes;
+    }
+
+    /**
+     * @return URL of the dataset resource, without a format extension, to build queries on
+     */
+    String getDatasetUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/resource/cuks-n6tp";
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+
+    private void replay(HttpExchange exchange) throws IOException, InterruptedException {
+        byte[] body = mBody;
+        int chunk_bytes = mChunkBytes;
+
+        if (mLatencyMs > 0) {
+            Thread.sleep(mLatencyMs);
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/vnd.geo+json");
+
+        // a length of 0 makes the response chunked
+        exchange.sendResponseHeaders(200, chunk_bytes > 0 ? 0 : body.length);
+
+        OutputStream out = exchange.getResponseBody();
+        int step = chunk_bytes > 0 ? chunk_bytes : body.length;
+        for (int offset = 0; offset < body.length; offset += step) {
+            int length = Math.min(step, body.length - offset);
+            out.write(body, offset, length);
+            out.flush();
+
+            if (mBytesPerSecond > 0) {
+                Thread.sleep(length * 1000L / mBytesPerSecond);
+            }
+        }
+        out.close();
+    }
+}
@@ -0,0 +1,110 @@
+package com.olm.crimemap;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Canonical URLs, cache keys and shapes of SoqlQuery
+ */
+public class SoqlQueryTest {
+
+    private static long time(int year, int month, int day, int hour, int minute) {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(year, month, day, hour, minute);
+        return cal.getTimeInMillis();
+    }
+
+    @Test
+    public void districtCounts_buildsEncodedUrl() {
+        SoqlQuery query = IncidentQueries.districtCounts(time(2016, Calendar.AUGUST, 18, 0, 0));
+
+        assertEquals("https://data.sfgov.org/resource/cuks-n6tp.geojson" +
+                "?$select=pddistrict%2Ccount%28*%29%2Cavg%28x%29%2Cavg%28y%29" +
+                "&$where=date%3E%3D%272016-08-18T00%3A00%3A00.000%27" +
+                "&$group=pddistrict" +
+                "&$order=count%20DESC", query.toUrl());
+    }
+
+    @Test
+    public void window_roundsToBucket() {
+        // a few hours apart on the same day is the same query
+        SoqlQuery morning = IncidentQueries.districtCounts(time(2016, Calendar.AUGUST, 18, 9, 5));
+        SoqlQuery evening = IncidentQueries.districtCounts(time(2016, Calendar.AUGUST, 18, 21, 40));
+
+        assertEquals(morning.getCacheKey(), evening.getCacheKey());
+        assertEquals(morning, evening);
+        assertEquals(time(2016, Calendar.AUGUST, 18, 0, 0), morning.getWindowStart());
+        assertEquals(Long.MAX_VALUE, morning.getWindowEnd());
+
+        // the end is rounded up, so the window is only ever widened
+        SearchRequest request = new SearchRequest(Collections.<String>emptyList(), null,
+                null, time(2016, Calendar.AUGUST, 1, 0, 0), time(2016, Calendar.AUGUST, 20, 6, 0));
+        SoqlQuery search = IncidentQueries.search(request, "");
+        assertEquals(time(2016, Calendar.AUGUST, 21, 0, 0), search.getWindowEnd());
+    }
+
+    @Test
+    public void where_isCanonicalAndQuoted() {
+        SoqlQuery first = new SoqlQuery.Builder(IncidentQueries.DATASET, SoqlQuery.Format.JSON)
+                .whereEquals("pddistrict", "MISSION")
+                .whereEquals("category", "ASSAULT")
+                .search("O'FARRELL")
+                .build();
+        SoqlQuery second = new SoqlQuery.Builder(IncidentQueries.DATASET, SoqlQuery.Format.JSON)
+                .search("O'FARRELL")
+                .whereEquals("category", "ASSAULT")
+                .whereEquals("pddistrict", "MISSION")
+                .build();
+
+        assertEquals(first.getCacheKey(), second.getCacheKey());
+        assertEquals("$where=category%3D%27ASSAULT%27%20AND%20pddistrict%3D%27MISSION%27" +
+                "&$q=%27O%27%27FARRELL%27", first.getQueryString());
+    }
+
+    @Test
+    public void shape_ignoresValues() {
+        SoqlQuery august = IncidentQueries.districtCounts(time(2016, Calendar.AUGUST, 18, 0, 0));
+        SoqlQuery september = IncidentQueries.districtCounts(time(2016, Calendar.SEPTEMBER, 2, 0, 0));
+
+        assertNotEquals(august.getCacheKey(), september.getCacheKey());
+        assertEquals(august.getShape(), september.getShape());
+
+        SoqlQuery page = IncidentQueries.snapshotPage(time(2016, Calendar.AUGUST, 18, 0, 0),
+                1000, 2000);
+        assertNotEquals(august.getShape(), page.getShape());
+        assertTrue(page.getQueryString().endsWith("&$limit=1000&$offset=2000"));
+    }
+
+    @Test
+    public void nearby_boundsTheCircle() {
+        SoqlQuery query = IncidentQueries.nearby(time(2016, Calendar.AUGUST, 18, 0, 0),
+                37.7749, -122.4194, 400);
+
+        assertEquals("$where=date%3E%3D%272016-08-18T00%3A00%3A00.000%27" +
+                "%20AND%20x%3C%3D-122.414854%20AND%20x%3E%3D-122.423946" +
+                "%20AND%20y%3C%3D37.778493%20AND%20y%3E%3D37.771307", query.getQueryString());
+    }
+
+    @Test
+    public void snapshotShapes_holdTheQueriesTheSnapshotAnswers() {
+        long since = time(2016, Calendar.AUGUST, 18, 0, 0);
+        SearchRequest request = new SearchRequest(Collections.<String>emptyList(), "ASSAULT",
+                "MISSION", since, time(2016, Calendar.SEPTEMBER, 2, 0, 0));
+
+        assertTrue(IncidentQueries.SNAPSHOT_SHAPES.contains(
+                IncidentQueries.districtCounts(since).getShape()));
+        assertTrue(IncidentQueries.SNAPSHOT_SHAPES.contains(
+                IncidentQueries.search(request, "BURGLARY").getShape()));
+        assertTrue(IncidentQueries.SNAPSHOT_SHAPES.contains(
+                IncidentQueries.nearby(since, 37.7749, -122.4194, 400).getShape()));
+        assertFalse(IncidentQueries.SNAPSHOT_SHAPES.contains(
+                IncidentQueries.snapshotPage(since, 1000, 0).getShape()));
+        assertFalse(IncidentQueries.SNAPSHOT_SHAPES.contains(
+                IncidentQueries.districtCounts("http://localhost/incidents", since).getShape()));
+    }
+}